@@ -22,6 +22,11 @@ import com.jayway.annostatemachine.OnExitRef;
 import com.jayway.annostatemachine.SignalRef;
 import com.jayway.annostatemachine.StateRef;
 import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchers.BlockingWaitStrategy;
+import com.jayway.annostatemachine.dispatchers.OverflowPolicy;
+import com.jayway.annostatemachine.dispatchers.RingBufferDispatcher;
+import com.jayway.annostatemachine.dispatchers.SharedBackgroundQueueDispatcher;
 import com.squareup.javawriter.JavaWriter;
 
 import java.io.IOException;
@@ -40,6 +45,8 @@ import javax.tools.Diagnostic;
 class Model {
 
     private ArrayList<SignalRef> mSignals = new ArrayList<>();
+    private ArrayList<SignalRef> mConflatedSignals = new ArrayList<>();
+    private ArrayList<SignalRef> mUrgentSignals = new ArrayList<>();
     private HashMap<String, ArrayList<ConnectionRef>> mLocalSignalTransitions = new HashMap<>();
     private HashMap<String, ArrayList<ConnectionRef>> mLocalAnySignalSpies = new HashMap<>();
     private HashMap<String, ArrayList<ConnectionRef>> mLocalSignalSpies = new HashMap<>();
@@ -66,6 +73,15 @@ class Model {
 
     private StateMachine.DispatchMode mDispatchMode = StateMachine.DispatchMode.CALLING_THREAD;
     private int mDispatchQueueId = StateMachine.ID_GLOBAL_SHARED_QUEUE;
+    private boolean mUseDispatchTable = false;
+    private int mDrainBatchSize = BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE;
+    private int mRingBufferSize = RingBufferDispatcher.DEFAULT_BUFFER_SIZE;
+    private String mWaitStrategyClassName = BlockingWaitStrategy.class.getCanonicalName();
+    private int mQueueCapacity = BackgroundQueueDispatcher.UNBOUNDED_CAPACITY;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+    private int mSignalsPerTurn = SharedBackgroundQueueDispatcher.NO_FAIR_SHARE;
+    private long mIdleTimeoutMillis = BackgroundQueueDispatcher.NO_IDLE_TIMEOUT;
+    private int mThreadPriority = Thread.NORM_PRIORITY;
     private HashMap<String, OnExitRef> mOnExitCallbacks = new HashMap<>();
     private HashMap<String, OnEnterRef> mOnEnterCallbacks = new HashMap<>();
     private HashMap<String, ArrayList<ConnectionRef>> mAutoConnections = new HashMap<>();
@@ -81,14 +97,38 @@ class Model {
     private String mStatesEnumName;
 
     private boolean mHasMainThreadConnections = false;
+    private final ArrayList<ConnectionRef> mAsyncConnections = new ArrayList<>();
+    private final ArrayList<ConnectionRef> mWorkerConnections = new ArrayList<>();
 
     void add(SignalRef signal) {
         mSignals.add(signal);
     }
 
+    void addConflatedSignal(SignalRef signal) {
+        mConflatedSignals.add(signal);
+    }
+
+    ArrayList<SignalRef> getConflatedSignals() {
+        return mConflatedSignals;
+    }
+
+    void addUrgentSignal(SignalRef signal) {
+        mUrgentSignals.add(signal);
+    }
+
+    ArrayList<SignalRef> getUrgentSignals() {
+        return mUrgentSignals;
+    }
+
     void add(ConnectionRef connection) throws IllegalArgumentException {
 
         mHasMainThreadConnections = mHasMainThreadConnections || connection.getRunOnMainThread();
+        if (connection.isAsync()) {
+            mAsyncConnections.add(connection);
+        }
+        if (connection.getRunOnWorker()) {
+            mWorkerConnections.add(connection);
+        }
 
         boolean hasWildcardFrom = ConnectionRef.WILDCARD.equals(connection.getFrom());
         boolean hasWildcardTo = ConnectionRef.WILDCARD.equals(connection.getTo());
@@ -327,6 +367,72 @@ class Model {
         mDispatchQueueId = dispatchQueueId;
     }
 
+    void setUseDispatchTable(boolean useDispatchTable) {
+        mUseDispatchTable = useDispatchTable;
+    }
+
+    boolean usesDispatchTable() {
+        return mUseDispatchTable;
+    }
+
+    void setDrainBatchSize(int drainBatchSize) {
+        mDrainBatchSize = drainBatchSize;
+    }
+
+    int getDrainBatchSize() {
+        return mDrainBatchSize;
+    }
+
+    void setRingBuffer(int ringBufferSize, String waitStrategyClassName) {
+        mRingBufferSize = ringBufferSize;
+        mWaitStrategyClassName = waitStrategyClassName;
+    }
+
+    int getRingBufferSize() {
+        return mRingBufferSize;
+    }
+
+    String getWaitStrategyClassName() {
+        return mWaitStrategyClassName;
+    }
+
+    void setQueueBounds(int queueCapacity, OverflowPolicy overflowPolicy) {
+        mQueueCapacity = queueCapacity;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    void setSignalsPerTurn(int signalsPerTurn) {
+        mSignalsPerTurn = signalsPerTurn;
+    }
+
+    int getSignalsPerTurn() {
+        return mSignalsPerTurn;
+    }
+
+    void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    long getIdleTimeoutMillis() {
+        return mIdleTimeoutMillis;
+    }
+
+    void setThreadPriority(int threadPriority) {
+        mThreadPriority = threadPriority;
+    }
+
+    int getThreadPriority() {
+        return mThreadPriority;
+    }
+
     void aggregateConnectionsPerSignal() {
         aggregateLocalSignalTransitionsPerSignalPerState();
         aggregateGlobalSpiesPerSignal();
@@ -445,6 +551,76 @@ class Model {
         isValid &= checkSignalsDefined(errorTag, messager);
         isValid &= checkStatesDefined(errorTag, messager);
 
+        if (mDrainBatchSize < 1) {
+            isValid = false;
+            messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Drain batch size must be at least 1, was "
+                    + mDrainBatchSize);
+        }
+
+        if (mRingBufferSize < 1 || Integer.bitCount(mRingBufferSize) != 1) {
+            isValid = false;
+            messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Ring buffer size must be a power of two, was "
+                    + mRingBufferSize);
+        }
+
+        if (mQueueCapacity < 0) {
+            isValid = false;
+            messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Queue capacity must not be negative, was "
+                    + mQueueCapacity);
+        }
+
+        if (mSignalsPerTurn < 0) {
+            isValid = false;
+            messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Signals per turn must not be negative, was "
+                    + mSignalsPerTurn);
+        }
+
+        if (mIdleTimeoutMillis < 0) {
+            isValid = false;
+            messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Idle timeout must not be negative, was "
+                    + mIdleTimeoutMillis);
+        }
+
+        if (mThreadPriority < Thread.MIN_PRIORITY || mThreadPriority > Thread.MAX_PRIORITY) {
+            isValid = false;
+            messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Thread priority must be between "
+                    + Thread.MIN_PRIORITY + " and " + Thread.MAX_PRIORITY + ", was " + mThreadPriority);
+        }
+
+        for (SignalRef signal : mUrgentSignals) {
+            if (mConflatedSignals.contains(signal)) {
+                isValid = false;
+                messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Signal " + signal
+                        + " can not be both urgent and conflated");
+            }
+        }
+
+        for (ConnectionRef connection : mAsyncConnections) {
+            if (ConnectionRef.WILDCARD.equals(connection.getTo())) {
+                isValid = false;
+                messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Connection " + connection.getName()
+                        + " returns a CompletionStage but has no TO state to go to when it completes");
+            }
+            if (connection.getRunOnMainThread()) {
+                isValid = false;
+                messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Connection " + connection.getName()
+                        + " returns a CompletionStage and can not be run on the main thread");
+            }
+        }
+
+        for (ConnectionRef connection : mWorkerConnections) {
+            if (ConnectionRef.WILDCARD.equals(connection.getTo())) {
+                isValid = false;
+                messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Connection " + connection.getName()
+                        + " runs on a worker but has no TO state to go to when it is done");
+            }
+            if (connection.getRunOnMainThread() || connection.isAsync()) {
+                isValid = false;
+                messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING, errorTag + " - Connection " + connection.getName()
+                        + " runs on a worker and can not also run on the main thread or return a CompletionStage");
+            }
+        }
+
         HashMap<String, StateRef> nameToStateMap = new HashMap<>();
         for (StateRef stateRef : mStates) {
             nameToStateMap.put(stateRef.getName(), stateRef);
@@ -529,6 +705,10 @@ class Model {
         return mStates;
     }
 
+    ArrayList<SignalRef> getSignals() {
+        return mSignals;
+    }
+
     ArrayList<ConnectionRef> getAnySignalTransitionsForState(StateRef stateRef) {
         return mLocalAnySignalTransitions.get(stateRef.getName());
     }
@@ -597,6 +777,27 @@ class Model {
         return mHasMainThreadConnections;
     }
 
+    /**
+     * @return true if any connection returns a CompletionStage.
+     */
+    public boolean hasAsyncConnections() {
+        return !mAsyncConnections.isEmpty();
+    }
+
+    /**
+     * @return true if any connection runs on a worker.
+     */
+    public boolean hasWorkerConnections() {
+        return !mWorkerConnections.isEmpty();
+    }
+
+    /**
+     * @return true if any transition may be taken after the dispatch of its signal has returned.
+     */
+    public boolean hasDeferredConnections() {
+        return hasAsyncConnections() || hasWorkerConnections();
+    }
+
     public HashMap<String, OnExitRef> getOnExitCallbacks() {
         return mOnExitCallbacks;
     }
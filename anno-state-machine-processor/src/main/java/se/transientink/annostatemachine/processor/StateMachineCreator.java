@@ -17,6 +17,8 @@
 package se.transientink.annostatemachine.processor;
 
 
+import com.jayway.annostatemachine.AnnoStateMachine;
+import com.jayway.annostatemachine.BoundedStateMachineFront;
 import com.jayway.annostatemachine.Config;
 import com.jayway.annostatemachine.ConnectionRef;
 import com.jayway.annostatemachine.DispatchCallback;
@@ -28,7 +30,9 @@ import com.jayway.annostatemachine.OnExitRef;
 import com.jayway.annostatemachine.ParameterRef;
 import com.jayway.annostatemachine.PayloadModifier;
 import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalDispatcherFactory;
 import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.SignalRef;
 import com.jayway.annostatemachine.StateMachineEventListener;
 import com.jayway.annostatemachine.StateMachineFront;
 import com.jayway.annostatemachine.StateRef;
@@ -36,14 +40,21 @@ import com.jayway.annostatemachine.annotations.StateMachine;
 import com.jayway.annostatemachine.annotations.IncompleteStateMachine;
 import com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher;
 import com.jayway.annostatemachine.dispatchers.CallingThreadDispatcher;
+import com.jayway.annostatemachine.dispatchers.OverflowPolicy;
+import com.jayway.annostatemachine.dispatchers.RingBufferDispatcher;
 import com.jayway.annostatemachine.dispatchers.SharedBackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchers.VirtualThreadDispatcher;
+import com.jayway.annostatemachine.dispatchers.WorkStealingDispatcher;
 import com.jayway.annostatemachine.utils.StateMachineLogger;
 import com.squareup.javawriter.JavaWriter;
 
 import java.io.IOException;
 import java.io.Writer;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -51,6 +62,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.processing.Messager;
@@ -71,6 +83,10 @@ final class StateMachineCreator {
 
   public static final String ARG_PREFIX = "arg_";
 
+  // Referenced by name since the processor itself only requires Java 7
+  private static final String COMPLETION_STAGE_CLASS_NAME = "java.util.concurrent.CompletionStage";
+  private static final String BI_CONSUMER_CLASS_NAME = "java.util.function.BiConsumer";
+
   /**
    * Emits a block of code that calls the provided transition connection methods in order until
    * one returns true. The next state or null is returned from the generated code.
@@ -95,7 +111,7 @@ final class StateMachineCreator {
   void generateFieldDeclarations(Model model, JavaWriter javaWriter) throws IOException {
     javaWriter.emitEmptyLine();
     javaWriter.emitField(model.getStatesEnumName(), "mCurrentState", EnumSet.of(Modifier.PRIVATE));
-    javaWriter.emitField("boolean", "mWaitingForInit", EnumSet.of(Modifier.PRIVATE), "true");
+    javaWriter.emitField("boolean", "mWaitingForInit", EnumSet.of(Modifier.PRIVATE, Modifier.VOLATILE), "true");
     javaWriter.emitField(StateMachineEventListener.class.getSimpleName(), "mEventListener", EnumSet.of(Modifier.PRIVATE));
     javaWriter.emitField(SignalDispatcher.class.getSimpleName(), "mSignalDispatcher", EnumSet.of(Modifier.PRIVATE));
     javaWriter.emitField(DispatchCallback.class.getSimpleName(), "mDispatchCallback", EnumSet.of(Modifier.PRIVATE));
@@ -103,6 +119,12 @@ final class StateMachineCreator {
     javaWriter.emitField(MainThreadPoster.class.getSimpleName(), "mMainThreadPoster", EnumSet.of(Modifier.PRIVATE), "new NoOpMainThreadPoster()");
     javaWriter.emitField(AtomicBoolean.class.getSimpleName(), "mIsShutdown", EnumSet.of(Modifier.PRIVATE), "new AtomicBoolean(false)");
     javaWriter.emitField("int", "mSharedId");
+    if (model.hasDeferredConnections()) {
+      // Only used on the dispatch thread
+      javaWriter.emitField("boolean", "mTransitionPending", EnumSet.of(Modifier.PRIVATE));
+      javaWriter.emitField("ArrayDeque<Enum>", "mBufferedSignals", EnumSet.of(Modifier.PRIVATE, Modifier.FINAL), "new ArrayDeque<>()");
+      javaWriter.emitField("ArrayDeque<SignalPayload>", "mBufferedPayloads", EnumSet.of(Modifier.PRIVATE, Modifier.FINAL), "new ArrayDeque<>()");
+    }
   }
 
   void generatePassThroughConstructors(Element element, final Model model,
@@ -177,7 +199,7 @@ final class StateMachineCreator {
 
     if (model.getGlobalSignalTransitionsPerSignal().size() > 0
         || model.getGlobalAnySignalTransitions().size() > 0) {
-      javaWriter.beginControlFlow("if (nextState == null)");
+      javaWriter.beginControlFlow(model.hasDeferredConnections() ? "if (nextState == null && !mTransitionPending)" : "if (nextState == null)");
 
       emitGlobalSpecificSignalConnectionHandler(model, javaWriter);
       emitGlobalAnySignalTransitionsBlock(model, javaWriter);
@@ -191,6 +213,255 @@ final class StateMachineCreator {
     javaWriter.endMethod();
   }
 
+  /**
+   * Emits the static tables used when the state machine is generated with a dispatch table. The
+   * local table is indexed by state and signal ordinal and the global table by signal ordinal.
+   * Each cell holds the index of the handler method, see {@link #getLocalTableHandlers(Model)}
+   * and {@link #getGlobalTableHandlers(Model)}, that evaluates the connections for that cell.
+   */
+  private void generateDispatchTables(Model model, JavaWriter javaWriter) throws IOException {
+    javaWriter.emitEmptyLine();
+    javaWriter.emitField("int[][]", "LOCAL_DISPATCH_TABLE", EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL),
+        "new int[" + model.getStatesEnumName() + ".values().length][" + model.getSignalsEnumName() + ".values().length]");
+    if (hasGlobalConnections(model)) {
+      // The any signal handler has index 0 so cells for signals without global specific
+      // connections need no initialization.
+      javaWriter.emitField("int[]", "GLOBAL_DISPATCH_TABLE", EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL),
+          "new int[" + model.getSignalsEnumName() + ".values().length]");
+    }
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginInitializer(true);
+    List<TableHandler> localHandlers = getLocalTableHandlers(model);
+    for (int i = 0; i < localHandlers.size(); i++) {
+      TableHandler handler = localHandlers.get(i);
+      if (handler.signal == null) {
+        javaWriter.emitStatement("Arrays.fill(LOCAL_DISPATCH_TABLE[%s.%s.ordinal()], %d)",
+            model.getStatesEnumName(), handler.state.getName(), i);
+      } else {
+        javaWriter.emitStatement("LOCAL_DISPATCH_TABLE[%s.%s.ordinal()][%s.%s.ordinal()] = %d",
+            model.getStatesEnumName(), handler.state.getName(), model.getSignalsEnumName(), handler.signal, i);
+      }
+    }
+    if (hasGlobalConnections(model)) {
+      List<TableHandler> globalHandlers = getGlobalTableHandlers(model);
+      for (int i = 1; i < globalHandlers.size(); i++) {
+        javaWriter.emitStatement("GLOBAL_DISPATCH_TABLE[%s.%s.ordinal()] = %d",
+            model.getSignalsEnumName(), globalHandlers.get(i).signal, i);
+      }
+    }
+    javaWriter.endInitializer();
+  }
+
+  /**
+   * Emits the dispatch method used when the state machine is generated with a dispatch table. The
+   * connections are evaluated in the same order as in {@link #generateSignalDispatcher(Model, JavaWriter)}.
+   */
+  private void generateTableSignalDispatcher(Model model, JavaWriter javaWriter) throws IOException {
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod(model.getStatesEnumName(), "dispatchSignal", EnumSet.of(Modifier.PRIVATE),
+        "Enum", "signal", "final SignalPayload", "payload");
+
+    javaWriter.emitStatement(model.getStatesEnumName() + " nextState = null");
+    javaWriter.emitStatement("mEventListener.onDispatchingSignal(mCurrentState, signal)");
+
+    javaWriter.emitEmptyLine();
+
+    javaWriter.beginControlFlow("switch (LOCAL_DISPATCH_TABLE[mCurrentState.ordinal()][signal.ordinal()])");
+    List<TableHandler> localHandlers = getLocalTableHandlers(model);
+    for (int i = 0; i < localHandlers.size(); i++) {
+      javaWriter.emitStatement("case %d: nextState = %s(signal, payload); break", i, localHandlers.get(i).methodName);
+    }
+    javaWriter.endControlFlow();
+
+    if (hasGlobalConnections(model)) {
+      javaWriter.emitEmptyLine();
+      javaWriter.beginControlFlow("switch (GLOBAL_DISPATCH_TABLE[signal.ordinal()])");
+      List<TableHandler> globalHandlers = getGlobalTableHandlers(model);
+      for (int i = 0; i < globalHandlers.size(); i++) {
+        javaWriter.emitStatement("case %d: nextState = %s(signal, payload, nextState); break", i, globalHandlers.get(i).methodName);
+      }
+      javaWriter.endControlFlow();
+    }
+
+    javaWriter.emitEmptyLine();
+    javaWriter.emitStatement("return nextState");
+
+    javaWriter.endMethod();
+  }
+
+  /**
+   * Emits one handler method per cell group in the dispatch tables. A handler evaluates the spies
+   * and transitions for its state and signal in the order local specific signal, local any
+   * signal, global specific signal and global any signal.
+   */
+  private void generateTableSignalHandlers(Model model, JavaWriter javaWriter) throws IOException {
+    for (TableHandler handler : getLocalTableHandlers(model)) {
+      javaWriter.emitEmptyLine();
+      javaWriter.beginMethod(model.getStatesEnumName(), handler.methodName, EnumSet.of(Modifier.PRIVATE),
+          "Enum", "signal", "final SignalPayload", "payload");
+
+      if (handler.signal != null) {
+        emitSpyCalls(getForSignal(model.getLocalSignalSpiesPerSignalForState(handler.state), handler.signal), javaWriter);
+      }
+      emitSpyCalls(model.getLocalAnySignalSpiesForState(handler.state), javaWriter);
+
+      boolean hasGuardlessTransition = false;
+      if (handler.signal != null) {
+        hasGuardlessTransition = emitTransitionCalls(model,
+            getForSignal(model.getLocalSignalTransitionsPerSignalForState(handler.state), handler.signal), javaWriter);
+      }
+      if (!hasGuardlessTransition) {
+        hasGuardlessTransition = emitTransitionCalls(model, model.getAnySignalTransitionsForState(handler.state), javaWriter);
+      }
+      if (!hasGuardlessTransition) {
+        javaWriter.emitStatement("return null");
+      }
+      javaWriter.endMethod();
+    }
+
+    if (!hasGlobalConnections(model)) {
+      return;
+    }
+
+    for (TableHandler handler : getGlobalTableHandlers(model)) {
+      javaWriter.emitEmptyLine();
+      javaWriter.beginMethod(model.getStatesEnumName(), handler.methodName, EnumSet.of(Modifier.PRIVATE),
+          "Enum", "signal", "final SignalPayload", "payload", model.getStatesEnumName(), "nextState");
+
+      if (handler.signal != null) {
+        emitSpyCalls(model.getGlobalSignalSpiesPerSignal().get(handler.signal), javaWriter);
+      }
+      emitSpyCalls(model.getGlobalAnySignalSpies(), javaWriter);
+
+      List<ConnectionRef> specificTransitions = handler.signal != null ?
+          model.getGlobalSignalTransitionsPerSignal().get(handler.signal) : null;
+      List<ConnectionRef> anyTransitions = model.getGlobalAnySignalTransitions();
+      if ((specificTransitions == null || specificTransitions.isEmpty()) && anyTransitions.isEmpty()) {
+        javaWriter.emitStatement("return nextState");
+      } else {
+        // Global transitions are only evaluated if no local transition was taken.
+        javaWriter.beginControlFlow(model.hasDeferredConnections() ? "if (nextState != null || mTransitionPending)" : "if (nextState != null)");
+        javaWriter.emitStatement("return nextState");
+        javaWriter.endControlFlow();
+        boolean hasGuardlessTransition = emitTransitionCalls(model, specificTransitions, javaWriter);
+        if (!hasGuardlessTransition) {
+          hasGuardlessTransition = emitTransitionCalls(model, anyTransitions, javaWriter);
+        }
+        if (!hasGuardlessTransition) {
+          javaWriter.emitStatement("return null");
+        }
+      }
+      javaWriter.endMethod();
+    }
+  }
+
+  /**
+   * Returns the handlers referenced by the local dispatch table. For each state there is one
+   * handler for signals without specific connections, followed by one handler per signal that
+   * has specific connections in the state.
+   */
+  private List<TableHandler> getLocalTableHandlers(Model model) {
+    List<TableHandler> handlers = new ArrayList<>();
+    for (StateRef state : model.getStates()) {
+      handlers.add(new TableHandler(state, null, "handleAnySignalIn" + camelCase(state.getName())));
+      HashMap<String, ArrayList<ConnectionRef>> spiesPerSignal = model.getLocalSignalSpiesPerSignalForState(state);
+      HashMap<String, ArrayList<ConnectionRef>> transitionsPerSignal = model.getLocalSignalTransitionsPerSignalForState(state);
+      for (SignalRef signal : model.getSignals()) {
+        String signalName = signal.toString();
+        if (getForSignal(spiesPerSignal, signalName) != null || getForSignal(transitionsPerSignal, signalName) != null) {
+          handlers.add(new TableHandler(state, signalName,
+              "handle" + camelCase(signalName) + "In" + camelCase(state.getName())));
+        }
+      }
+    }
+    return handlers;
+  }
+
+  /**
+   * Returns the handlers referenced by the global dispatch table. The first handler is used for
+   * signals without global specific connections, followed by one handler per signal that has
+   * global specific connections.
+   */
+  private List<TableHandler> getGlobalTableHandlers(Model model) {
+    List<TableHandler> handlers = new ArrayList<>();
+    handlers.add(new TableHandler(null, null, "handleAnySignalGlobally"));
+    for (SignalRef signal : model.getSignals()) {
+      String signalName = signal.toString();
+      if (model.getGlobalSignalSpiesPerSignal().containsKey(signalName)
+          || model.getGlobalSignalTransitionsPerSignal().containsKey(signalName)) {
+        handlers.add(new TableHandler(null, signalName, "handle" + camelCase(signalName) + "Globally"));
+      }
+    }
+    return handlers;
+  }
+
+  private static boolean hasGlobalConnections(Model model) {
+    return model.getGlobalSignalSpiesPerSignal().size() > 0
+        || model.getGlobalAnySignalSpies().size() > 0
+        || model.getGlobalSignalTransitionsPerSignal().size() > 0
+        || model.getGlobalAnySignalTransitions().size() > 0;
+  }
+
+  private static ArrayList<ConnectionRef> getForSignal(HashMap<String, ArrayList<ConnectionRef>> connectionsPerSignal, String signal) {
+    return connectionsPerSignal != null ? connectionsPerSignal.get(signal) : null;
+  }
+
+  private void emitSpyCalls(List<ConnectionRef> spies, JavaWriter javaWriter) throws IOException {
+    if (spies == null) {
+      return;
+    }
+    for (ConnectionRef spy : spies) {
+      emitSpyCall(spy, javaWriter);
+    }
+  }
+
+  /**
+   * Emits the transition calls in order. Emitting stops after the first connection that ends the
+   * evaluation, see {@link #endsEvaluation(ConnectionRef)}, since the generated code always
+   * returns there.
+   *
+   * @return true if such a connection was emitted.
+   */
+  private boolean emitTransitionCalls(Model model, List<ConnectionRef> transitions, JavaWriter javaWriter) throws IOException {
+    if (transitions == null) {
+      return false;
+    }
+    for (ConnectionRef transition : transitions) {
+      emitTransitionCall(model, transition, javaWriter);
+      if (endsEvaluation(transition)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the generated code always returns after calling the connection. That is the
+   * case for connections without a guard and for asynchronous and worker connections, whose
+   * guard is only known after the dispatch has returned.
+   */
+  private static boolean endsEvaluation(ConnectionRef connection) {
+    return !connection.hasGuard() || connection.isAsync() || connection.getRunOnWorker();
+  }
+
+  /**
+   * A handler method referenced from a dispatch table.
+   */
+  private static final class TableHandler {
+    // Null for global handlers
+    final StateRef state;
+    // Null for the handler used for signals without specific connections
+    final String signal;
+    final String methodName;
+
+    TableHandler(StateRef state, String signal, String methodName) {
+      this.state = state;
+      this.signal = signal;
+      this.methodName = methodName;
+    }
+  }
+
   private void generateSignalDispatcherStub(Model model, JavaWriter javaWriter) throws IOException {
     javaWriter.emitEmptyLine();
     javaWriter.beginMethod(model.getStatesEnumName(), "dispatchSignal", EnumSet.of(Modifier.PRIVATE),
@@ -227,7 +498,10 @@ final class StateMachineCreator {
             CountDownLatch.class.getCanonicalName(),
             AtomicBoolean.class.getCanonicalName(),
             WeakReference.class.getCanonicalName(),
-            StateMachineFront.class.getCanonicalName());
+            TimeUnit.class.getCanonicalName(),
+            SignalDispatcherFactory.class.getCanonicalName(),
+            StateMachineFront.class.getCanonicalName(),
+            BoundedStateMachineFront.class.getCanonicalName());
 
         switch (model.getDispatchMode()) {
           case BACKGROUND_QUEUE:
@@ -236,30 +510,64 @@ final class StateMachineCreator {
           case SHARED_BACKGROUND_QUEUE:
             javaWriter.emitImports(SharedBackgroundQueueDispatcher.class.getCanonicalName());
             break;
+          case VIRTUAL_THREAD:
+            javaWriter.emitImports(VirtualThreadDispatcher.class.getCanonicalName());
+            break;
+          case WORK_STEALING:
+            javaWriter.emitImports(WorkStealingDispatcher.class.getCanonicalName());
+            break;
+          case RING_BUFFER:
+            javaWriter.emitImports(RingBufferDispatcher.class.getCanonicalName());
+            break;
           case CALLING_THREAD:
             // Intentional fall-through
           default:
             javaWriter.emitImports(CallingThreadDispatcher.class.getCanonicalName());
         }
 
+        if (model.usesDispatchTable()) {
+          javaWriter.emitImports(Arrays.class.getCanonicalName());
+        }
+        if (model.hasDeferredConnections()) {
+          javaWriter.emitImports(ArrayDeque.class.getCanonicalName());
+        }
+        if (model.hasAsyncConnections()) {
+          javaWriter.emitImports(COMPLETION_STAGE_CLASS_NAME, BI_CONSUMER_CLASS_NAME);
+        }
+        if (model.hasWorkerConnections()) {
+          javaWriter.emitImports(AnnoStateMachine.class.getCanonicalName());
+        }
+
         javaWriter.emitEmptyLine();
 
         generateClassJavaDoc(model, javaWriter);
         javaWriter.beginType(model.getTargetClassName(), "class", EnumSet.of(Modifier.PUBLIC),
-            model.getSourceClassName(), "StateMachineFront<" + model.getSourceClassName() + "." + model.getSignalsEnumName() + ">");
+            model.getSourceClassName(), "StateMachineFront<" + model.getSourceClassName() + "." + model.getSignalsEnumName() + ">",
+            "BoundedStateMachineFront<" + model.getSourceClassName() + "." + model.getSignalsEnumName() + ">");
 
         model.describeContents(javaWriter);
 
         generateFieldDeclarations(model, javaWriter);
+        if (model.usesDispatchTable()) {
+          generateDispatchTables(model, javaWriter);
+        }
 
         generatePassThroughConstructors(stateMachineDeclarationElement, model, processingEnv.getMessager(), javaWriter);
 
         generateInitMethods(model, javaWriter);
 
-        generateSignalDispatcher(model, javaWriter);
+        if (model.usesDispatchTable()) {
+          generateTableSignalDispatcher(model, javaWriter);
+        } else {
+          generateSignalDispatcher(model, javaWriter);
+        }
         generateBlockingDispatchCallback(model, javaWriter);
 
-        generateSignalHandlersForStates(model, javaWriter);
+        if (model.usesDispatchTable()) {
+          generateTableSignalHandlers(model, javaWriter);
+        } else {
+          generateSignalHandlersForStates(model, javaWriter);
+        }
 
         generateSendMethods(model, javaWriter);
         generateSwitchStateMethod(model, javaWriter);
@@ -277,6 +585,10 @@ final class StateMachineCreator {
           generateRunOnMainThreadMethod(model, writer);
         }
 
+        if (model.hasDeferredConnections()) {
+          generateDeferredTransitionMethods(model, javaWriter);
+        }
+
         // End class
         javaWriter.emitEmptyLine();
         javaWriter.endType();
@@ -337,6 +649,17 @@ final class StateMachineCreator {
     javaWriter.emitStatement("mIsShutdown.set(true)");
     javaWriter.emitStatement("mSignalDispatcher.shutDown()");
     javaWriter.endMethod();
+
+    // The dispatcher refuses new signals by itself, the flag is set afterwards so that the
+    // signals already sent are still dispatched by the callback.
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod("int", "shutDownGracefully", EnumSet.of(Modifier.PUBLIC),
+        Arrays.asList("long", "timeout", TimeUnit.class.getSimpleName(), "unit"),
+        Arrays.asList(InterruptedException.class.getSimpleName()));
+    javaWriter.emitStatement("int discardedCount = mSignalDispatcher.shutDownGracefully(timeout, unit)");
+    javaWriter.emitStatement("mIsShutdown.set(true)");
+    javaWriter.emitStatement("return discardedCount");
+    javaWriter.endMethod();
   }
 
   private void generateClassJavaDoc(Model model, JavaWriter javaWriter) throws IOException {
@@ -403,10 +726,17 @@ final class StateMachineCreator {
   }
 
   private void emitTransitionCall(Model model, ConnectionRef connection, JavaWriter javaWriter) throws IOException {
+    if (connection.getRunOnWorker()) {
+      emitWorkerTransitionCall(model, connection, javaWriter);
+      return;
+    }
     emitParametersFromPayload(connection, javaWriter);
     String arguments = generateArguments(connection);
 
-    if (connection.getRunOnMainThread()) {
+    if (connection.isAsync()) {
+      javaWriter.emitStatement("return awaitTransition(%s(%s), %s.%s)",
+          connection.getName(), arguments, model.getStatesEnumName(), connection.getTo());
+    } else if (connection.getRunOnMainThread()) {
       if (connection.hasGuard()) {
         javaWriter.beginControlFlow(
             "if (callConnectionOnMainThread(new Callable<Boolean>() { public Boolean call() throws Exception {" +
@@ -429,6 +759,27 @@ final class StateMachineCreator {
     }
   }
 
+  /**
+   * Emits a call that hands the connection over to the connection executor. The parameters are
+   * read from the payload on the worker so that only the payload has to be passed along.
+   */
+  private void emitWorkerTransitionCall(Model model, ConnectionRef connection, JavaWriter javaWriter) throws IOException {
+    javaWriter.beginControlFlow("return awaitTransitionOnWorker(new Callable<Object>()");
+    javaWriter.emitAnnotation(Override.class);
+    javaWriter.beginMethod("Object", "call", EnumSet.of(Modifier.PUBLIC), Collections.<String>emptyList(),
+        Collections.singletonList(Exception.class.getSimpleName()));
+    emitParametersFromPayload(connection, javaWriter);
+    String arguments = generateArguments(connection);
+    if (connection.hasGuard()) {
+      javaWriter.emitStatement("return %s(%s)", connection.getName(), arguments);
+    } else {
+      javaWriter.emitStatement("%s(%s)", connection.getName(), arguments);
+      javaWriter.emitStatement("return null");
+    }
+    javaWriter.endMethod();
+    javaWriter.endControlFlow(", " + model.getStatesEnumName() + "." + connection.getTo() + ")");
+  }
+
   private String generateArguments(ConnectionRef connection) {
     StringBuilder sb = new StringBuilder();
     LinkedList<ParameterRef> params = connection.getParameters();
@@ -501,7 +852,13 @@ final class StateMachineCreator {
   private void generateSendMethods(Model model, JavaWriter javaWriter) throws IOException {
     javaWriter.emitEmptyLine();
     javaWriter.emitAnnotation(Override.class);
-    javaWriter.beginMethod("void", "send", EnumSet.of(Modifier.PUBLIC, Modifier.SYNCHRONIZED), model.getSignalsEnumName(), "signal", "SignalPayload", "payload");
+    // When dispatching on the calling thread the monitor makes sure that only one signal is
+    // handled at a time. The background dispatchers serialize the signals themselves and accept
+    // signals from any number of threads without locking, so there the monitor would only add
+    // contention between the sending threads.
+    EnumSet<Modifier> sendModifiers = model.getDispatchMode() == StateMachine.DispatchMode.CALLING_THREAD ?
+        EnumSet.of(Modifier.PUBLIC, Modifier.SYNCHRONIZED) : EnumSet.of(Modifier.PUBLIC);
+    javaWriter.beginMethod("boolean", "trySend", sendModifiers, model.getSignalsEnumName(), "signal", "SignalPayload", "payload");
 
     javaWriter.beginControlFlow("if (mWaitingForInit)");
     javaWriter.emitStatement("throw new IllegalStateException(\"Missing call to init\")");
@@ -509,7 +866,7 @@ final class StateMachineCreator {
 
     javaWriter.beginControlFlow("if (mIsShutdown.get())");
     javaWriter.emitStatement("mLogger.e(\"%s\", \"Send called after shut down\", new Exception(\"Ignoring signal \" + signal + \" - state machine has been shut down\"))", model.getTargetClassName());
-    javaWriter.emitStatement("return");
+    javaWriter.emitStatement("return false");
     javaWriter.endControlFlow();
 
     javaWriter.emitEmptyLine();
@@ -518,7 +875,23 @@ final class StateMachineCreator {
     javaWriter.endControlFlow();
     javaWriter.emitStatement("PayloadModifier.setSignalOnPayload(signal, payload)");
 
-    javaWriter.emitStatement("mSignalDispatcher.dispatch(signal, payload, mDispatchCallback, mLogger)");
+    if (!model.getUrgentSignals().isEmpty()) {
+      javaWriter.beginControlFlow("if (" + isAnyOf(model, model.getUrgentSignals()) + ")");
+      javaWriter.emitStatement("return mSignalDispatcher.tryDispatchUrgent(signal, payload, mDispatchCallback, mLogger)");
+      javaWriter.endControlFlow();
+    }
+    if (!model.getConflatedSignals().isEmpty()) {
+      javaWriter.beginControlFlow("if (" + isAnyOf(model, model.getConflatedSignals()) + ")");
+      javaWriter.emitStatement("return mSignalDispatcher.tryDispatchConflated(signal, payload, mDispatchCallback, mLogger)");
+      javaWriter.endControlFlow();
+    }
+    javaWriter.emitStatement("return mSignalDispatcher.tryDispatch(signal, payload, mDispatchCallback, mLogger)");
+    javaWriter.endMethod();
+
+    javaWriter.emitEmptyLine();
+    javaWriter.emitAnnotation(Override.class);
+    javaWriter.beginMethod("void", "send", EnumSet.of(Modifier.PUBLIC), model.getSignalsEnumName(), "signal", "SignalPayload", "payload");
+    javaWriter.emitStatement("trySend(signal, payload)");
     javaWriter.endMethod();
 
     javaWriter.emitEmptyLine();
@@ -555,6 +928,14 @@ final class StateMachineCreator {
     javaWriter.emitStatement("return");
     javaWriter.endControlFlow();
 
+    if (model.hasDeferredConnections()) {
+      javaWriter.beginControlFlow("if (machine.mTransitionPending)");
+      javaWriter.emitStatement("machine.mBufferedSignals.add(signal)");
+      javaWriter.emitStatement("machine.mBufferedPayloads.add(payload)");
+      javaWriter.emitStatement("return");
+      javaWriter.endControlFlow();
+    }
+
     javaWriter.emitEmptyLine();
     javaWriter.emitStatement(model.getStatesEnumName() + " nextState = machine.dispatchSignal(signal, payload)");
     javaWriter.beginControlFlow("if (nextState != null)");
@@ -574,6 +955,20 @@ final class StateMachineCreator {
     javaWriter.endType();
   }
 
+  /**
+   * @return A condition that is true if the signal parameter is any of the given signals.
+   */
+  private static String isAnyOf(Model model, List<SignalRef> signals) {
+    StringBuilder condition = new StringBuilder();
+    for (SignalRef signal : signals) {
+      if (condition.length() > 0) {
+        condition.append(" || ");
+      }
+      condition.append("signal == ").append(model.getSignalsEnumName()).append(".").append(signal);
+    }
+    return condition.toString();
+  }
+
   private void generateSwitchStateMethod(Model model, JavaWriter javaWriter) throws IOException {
     javaWriter.emitEmptyLine();
     javaWriter.beginMethod("void", "switchState", EnumSet.of(Modifier.PRIVATE), model.getStatesEnumName(), "nextState");
@@ -633,13 +1028,14 @@ final class StateMachineCreator {
     for (Map.Entry<String, ArrayList<ConnectionRef>> entry : model.getAutoConnections().entrySet()) {
       javaWriter.emitEmptyLine();
       javaWriter.beginMethod(model.getStatesEnumName(), "callAutoConnectionsFor" + entry.getKey(),
-          EnumSet.of(Modifier.PRIVATE), "SignalPayload<" + model.getSignalsEnumName() + ">", "payload");
+          EnumSet.of(Modifier.PRIVATE), "final SignalPayload<" + model.getSignalsEnumName() + ">", "payload");
       boolean foundGuardlessAutoConnection = false;
       for (ConnectionRef connection : entry.getValue()) {
-        if (!connection.hasGuard()) {
+        emitTransitionCall(model, connection, javaWriter);
+        if (endsEvaluation(connection)) {
           foundGuardlessAutoConnection = true;
+          break;
         }
-        emitTransitionCall(model, connection, javaWriter);
       }
       if (!foundGuardlessAutoConnection) {
         javaWriter.emitStatement("return null");
@@ -662,6 +1058,9 @@ final class StateMachineCreator {
         javaWriter.beginControlFlow("if (signal.equals(" + model.getSignalsEnumName() + "." + connectionsForSignalEntry.getKey() + "))");
         for (ConnectionRef connectionForSignal : connectionsForSignalEntry.getValue()) {
           emitTransitionCall(model, connectionForSignal, javaWriter);
+          if (endsEvaluation(connectionForSignal)) {
+            break;
+          }
         }
         javaWriter.endControlFlow();
       }
@@ -673,7 +1072,10 @@ final class StateMachineCreator {
       javaWriter.emitEmptyLine();
       for (ConnectionRef connection : anySignalConnectionsForState) {
         emitTransitionCall(model, connection, javaWriter);
-        hasGuardlessAnySignalConnetion |= !connection.hasGuard();
+        if (endsEvaluation(connection)) {
+          hasGuardlessAnySignalConnetion = true;
+          break;
+        }
       }
     }
 
@@ -710,19 +1112,44 @@ final class StateMachineCreator {
 
   private void generateInitMethods(Model model, JavaWriter javaWriter) throws IOException {
     javaWriter.emitEmptyLine();
-    javaWriter.beginMethod("void", "init", EnumSet.of(Modifier.PUBLIC), model.getStatesEnumName(), "startingState", StateMachineEventListener.class.getSimpleName(), "eventListener", MainThreadPoster.class.getSimpleName(), "mainThreadPoster");
+    javaWriter.beginMethod("void", "init", EnumSet.of(Modifier.PUBLIC), model.getStatesEnumName(), "startingState", StateMachineEventListener.class.getSimpleName(), "eventListener", MainThreadPoster.class.getSimpleName(), "mainThreadPoster", SignalDispatcher.class.getSimpleName(), "signalDispatcher");
     javaWriter.emitStatement("mLogger = Config.get().getLogger()");
     javaWriter.emitStatement("mMainThreadPoster = mainThreadPoster != null ? mainThreadPoster : new NoOpMainThreadPoster()");
     javaWriter.emitStatement("mDispatchCallback = new MachineCallback(this, mLogger)");
     javaWriter.emitStatement("mSharedId = " + model.getDispatchQueueId());
 
+    // Queue bounds are only passed on when set so that unbounded machines keep the short form
+    String queueBoundArguments = model.getQueueCapacity() == BackgroundQueueDispatcher.UNBOUNDED_CAPACITY ? "" :
+        ", " + model.getQueueCapacity() + ", " + OverflowPolicy.class.getCanonicalName() + "." + model.getOverflowPolicy();
+
     String dispatchConstructorCall;
     switch (model.getDispatchMode()) {
       case BACKGROUND_QUEUE:
-        dispatchConstructorCall = "BackgroundQueueDispatcher()";
+        dispatchConstructorCall = "BackgroundQueueDispatcher(" + model.getDrainBatchSize() + ", " + model.getQueueCapacity()
+            + ", " + OverflowPolicy.class.getCanonicalName() + "." + model.getOverflowPolicy() + ", "
+            + model.getIdleTimeoutMillis() + "L, \"" + model.getSourceClassName() + "\", " + model.getThreadPriority() + ")";
         break;
       case SHARED_BACKGROUND_QUEUE:
-        dispatchConstructorCall = "SharedBackgroundQueueDispatcher(mSharedId)";
+        if (model.getSignalsPerTurn() == SharedBackgroundQueueDispatcher.NO_FAIR_SHARE
+            && model.getThreadPriority() == Thread.NORM_PRIORITY) {
+          dispatchConstructorCall = "SharedBackgroundQueueDispatcher(mSharedId" + queueBoundArguments + ")";
+        } else {
+          dispatchConstructorCall = "SharedBackgroundQueueDispatcher(mSharedId, " + model.getQueueCapacity() + ", "
+              + OverflowPolicy.class.getCanonicalName() + "." + model.getOverflowPolicy() + ", "
+              + model.getSignalsPerTurn() + ", " + model.getThreadPriority() + ")";
+        }
+        break;
+      case VIRTUAL_THREAD:
+        dispatchConstructorCall = "VirtualThreadDispatcher(" + model.getDrainBatchSize() + queueBoundArguments + ")";
+        break;
+      case WORK_STEALING:
+        dispatchConstructorCall = "WorkStealingDispatcher(" + model.getDrainBatchSize() + queueBoundArguments + ")";
+        break;
+      case RING_BUFFER:
+        // The wait strategy is referenced by its qualified name since it may be a nested class
+        dispatchConstructorCall = "RingBufferDispatcher(" + model.getRingBufferSize()
+            + ", new " + model.getWaitStrategyClassName() + "(), \"" + model.getSourceClassName() + "\", "
+            + model.getThreadPriority() + ")";
         break;
       case CALLING_THREAD:
         // Intentional fall-through
@@ -730,22 +1157,39 @@ final class StateMachineCreator {
         dispatchConstructorCall = "CallingThreadDispatcher()";
 
     }
-    javaWriter.emitStatement("mSignalDispatcher = new " + dispatchConstructorCall);
+    // The dispatcher from the annotation is only created if none was given
+    javaWriter.emitStatement("mSignalDispatcher = signalDispatcher != null ? signalDispatcher : new " + dispatchConstructorCall);
     javaWriter.emitStatement("mEventListener = eventListener != null ? eventListener : new NullEventListener()");
     javaWriter.emitStatement("mWaitingForInit = false");
-    if (model.hasMainThreadConnections() && (model.getDispatchMode() != StateMachine.DispatchMode.CALLING_THREAD)) {
+    if (model.hasMainThreadConnections()) {
       // If the state machine calls connection on the main thread there's a possibility that one
       // such connection, via auto transitions, will be called as a result of init being called. We therefore need to
-      // run the switchState method on the dispatchers thread.
+      // run the switchState method on the dispatchers thread. A calling thread dispatcher, which may
+      // also have been passed to init, runs it right away.
       javaWriter.emitStatement("mSignalDispatcher.runOnDispatchThread(new Runnable() { public void run() { switchState(startingState); }}, mLogger)");
     } else {
       javaWriter.emitStatement("switchState(startingState)");
     }
     javaWriter.endMethod();
 
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod("void", "init", EnumSet.of(Modifier.PUBLIC), model.getStatesEnumName(), "startingState", StateMachineEventListener.class.getSimpleName(), "eventListener", MainThreadPoster.class.getSimpleName(), "mainThreadPoster", SignalDispatcherFactory.class.getSimpleName(), "signalDispatcherFactory");
+    javaWriter.emitStatement("init(startingState, eventListener, mainThreadPoster, signalDispatcherFactory.create())");
+    javaWriter.endMethod();
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod("void", "init", EnumSet.of(Modifier.PUBLIC), model.getStatesEnumName(), "startingState", StateMachineEventListener.class.getSimpleName(), "eventListener", MainThreadPoster.class.getSimpleName(), "mainThreadPoster");
+    javaWriter.emitStatement("init(startingState, eventListener, mainThreadPoster, (SignalDispatcher) null)");
+    javaWriter.endMethod();
+
     // If the state machine has at least one connection that wants the connection method to
     // be called on the ui thread, we force the user to specify a MainThreadPoster
     if (!model.hasMainThreadConnections()) {
+      javaWriter.emitEmptyLine();
+      javaWriter.beginMethod("void", "init", EnumSet.of(Modifier.PUBLIC), model.getStatesEnumName(), "startingState", SignalDispatcher.class.getSimpleName(), "signalDispatcher");
+      javaWriter.emitStatement("init(startingState, null, null, signalDispatcher)");
+      javaWriter.endMethod();
+
       javaWriter.emitEmptyLine();
       javaWriter.beginMethod("void", "init", EnumSet.of(Modifier.PUBLIC), model.getStatesEnumName(), "startingState", StateMachineEventListener.class.getSimpleName(), "eventListener");
       javaWriter.emitStatement("init(startingState, eventListener, null)");
@@ -763,6 +1207,150 @@ final class StateMachineCreator {
     javaWriter.endMethod();
   }
 
+  /**
+   * Emits the methods used by connections that return a CompletionStage or run on a worker. While
+   * such a connection is pending the signals that are dispatched are buffered. When it is done the
+   * transition is taken on the dispatch thread, unless the result is false or an error, and the
+   * buffered signals are dispatched in order until one of them again has to wait. A connection
+   * that is already done when it returns, like an already completed stage, is instead treated as a
+   * synchronous connection since posting its result could complete it in the middle of the
+   * dispatch that called it.
+   */
+  private void generateDeferredTransitionMethods(Model model, JavaWriter javaWriter) throws IOException {
+    generateDeferredTransitionType(model, javaWriter);
+
+    if (model.hasAsyncConnections()) {
+      javaWriter.emitEmptyLine();
+      javaWriter.beginMethod(model.getStatesEnumName(), "awaitTransition", EnumSet.of(Modifier.PRIVATE),
+          "CompletionStage<?>", "stage", model.getStatesEnumName(), "nextState");
+      javaWriter.emitStatement("mTransitionPending = true");
+      javaWriter.emitStatement("final DeferredTransition transition = new DeferredTransition(nextState)");
+      javaWriter.beginControlFlow("stage.whenComplete(new BiConsumer<Object, Throwable>()");
+      javaWriter.emitAnnotation(Override.class);
+      javaWriter.beginMethod("void", "accept", EnumSet.of(Modifier.PUBLIC), "Object", "result", "Throwable", "error");
+      javaWriter.emitStatement("transition.complete(result, error)");
+      javaWriter.endMethod();
+      javaWriter.endControlFlow(")");
+      javaWriter.emitStatement("return transition.await()");
+      javaWriter.endMethod();
+    }
+
+    if (model.hasWorkerConnections()) {
+      javaWriter.emitEmptyLine();
+      javaWriter.beginMethod(model.getStatesEnumName(), "awaitTransitionOnWorker", EnumSet.of(Modifier.PRIVATE),
+          "final Callable<Object>", "connection", model.getStatesEnumName(), "nextState");
+      javaWriter.emitStatement("mTransitionPending = true");
+      javaWriter.emitStatement("final DeferredTransition transition = new DeferredTransition(nextState)");
+      javaWriter.beginControlFlow("try");
+      javaWriter.beginControlFlow("AnnoStateMachine.getConnectionExecutor().execute(new Runnable()");
+      javaWriter.emitAnnotation(Override.class);
+      javaWriter.beginMethod("void", "run", EnumSet.of(Modifier.PUBLIC));
+      javaWriter.emitStatement("Object result = null");
+      javaWriter.emitStatement("Throwable error = null");
+      javaWriter.beginControlFlow("try");
+      javaWriter.emitStatement("result = connection.call()");
+      javaWriter.nextControlFlow("catch (Throwable t)");
+      javaWriter.emitStatement("error = t");
+      javaWriter.endControlFlow();
+      javaWriter.emitStatement("transition.complete(result, error)");
+      javaWriter.endMethod();
+      javaWriter.endControlFlow(")");
+      javaWriter.nextControlFlow("catch (RuntimeException e)");
+      // Nothing will complete the transition if the executor refused it
+      javaWriter.emitStatement("mTransitionPending = false");
+      javaWriter.emitStatement("throw e");
+      javaWriter.endControlFlow();
+      javaWriter.emitStatement("return transition.await()");
+      javaWriter.endMethod();
+    }
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod("void", "postTransitionResult", EnumSet.of(Modifier.PRIVATE),
+        "final " + model.getStatesEnumName(), "nextState", "final Object", "result", "final Throwable", "error");
+    javaWriter.beginControlFlow("mSignalDispatcher.runOnDispatchThread(new Runnable()");
+    javaWriter.emitAnnotation(Override.class);
+    javaWriter.beginMethod("void", "run", EnumSet.of(Modifier.PUBLIC));
+    if (model.getDispatchMode() == StateMachine.DispatchMode.CALLING_THREAD) {
+      // The result may be posted from any thread, the monitor keeps it from overlapping with send
+      javaWriter.beginControlFlow("synchronized (" + model.getTargetClassName() + ".this)");
+      javaWriter.emitStatement("completeTransition(nextState, result, error)");
+      javaWriter.endControlFlow();
+    } else {
+      javaWriter.emitStatement("completeTransition(nextState, result, error)");
+    }
+    javaWriter.endMethod();
+    javaWriter.endControlFlow(", mLogger)");
+    javaWriter.endMethod();
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod("void", "completeTransition", EnumSet.of(Modifier.PRIVATE),
+        model.getStatesEnumName(), "nextState", "Object", "result", "Throwable", "error");
+    javaWriter.emitStatement("mTransitionPending = false");
+    javaWriter.beginControlFlow("if (mIsShutdown.get())");
+    javaWriter.emitStatement("mBufferedSignals.clear()");
+    javaWriter.emitStatement("mBufferedPayloads.clear()");
+    javaWriter.emitStatement("return");
+    javaWriter.endControlFlow();
+    javaWriter.beginControlFlow("try");
+    javaWriter.beginControlFlow("if (error != null)");
+    javaWriter.emitStatement("mLogger.e(\"%s\", \"Error in connection to \" + nextState, error)", model.getTargetClassName());
+    javaWriter.emitStatement("mEventListener.onThrowable(error)");
+    javaWriter.nextControlFlow("else if (!Boolean.FALSE.equals(result))");
+    javaWriter.emitStatement("switchState(nextState)");
+    javaWriter.endControlFlow();
+    javaWriter.nextControlFlow("catch (Throwable t)");
+    javaWriter.emitStatement("mLogger.e(\"%s\", \"Error when switching to \" + nextState, t)", model.getTargetClassName());
+    javaWriter.emitStatement("mEventListener.onThrowable(t)");
+    javaWriter.endControlFlow();
+    javaWriter.beginControlFlow("while (!mTransitionPending && !mBufferedSignals.isEmpty())");
+    javaWriter.emitStatement("mDispatchCallback.dispatchBlocking(mBufferedSignals.poll(), mBufferedPayloads.poll())");
+    javaWriter.endControlFlow();
+    javaWriter.endMethod();
+  }
+
+  /**
+   * Emits the class that decides if a deferred connection completed before the call that started
+   * it returned. Whichever of complete and await comes last acts on the result, so a late result is
+   * posted to the dispatch thread while an early one is returned from the dispatch like the result
+   * of a synchronous connection.
+   */
+  private void generateDeferredTransitionType(Model model, JavaWriter javaWriter) throws IOException {
+    String statesEnumName = model.getStatesEnumName();
+    javaWriter.emitEmptyLine();
+    javaWriter.beginType("DeferredTransition", "class", EnumSet.of(Modifier.PRIVATE, Modifier.FINAL));
+    javaWriter.emitField(statesEnumName, "mNextState", EnumSet.of(Modifier.PRIVATE, Modifier.FINAL));
+    javaWriter.emitField(AtomicBoolean.class.getSimpleName(), "mIsFirstDone", EnumSet.of(Modifier.PRIVATE, Modifier.FINAL), "new AtomicBoolean()");
+    javaWriter.emitField("Object", "mResult", EnumSet.of(Modifier.PRIVATE));
+    javaWriter.emitField("Throwable", "mError", EnumSet.of(Modifier.PRIVATE));
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod(null, "DeferredTransition", EnumSet.noneOf(Modifier.class), statesEnumName, "nextState");
+    javaWriter.emitStatement("mNextState = nextState");
+    javaWriter.endMethod();
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod("void", "complete", EnumSet.noneOf(Modifier.class), "Object", "result", "Throwable", "error");
+    javaWriter.emitStatement("mResult = result");
+    javaWriter.emitStatement("mError = error");
+    javaWriter.beginControlFlow("if (!mIsFirstDone.compareAndSet(false, true))");
+    javaWriter.emitStatement("postTransitionResult(mNextState, result, error)");
+    javaWriter.endControlFlow();
+    javaWriter.endMethod();
+
+    javaWriter.emitEmptyLine();
+    javaWriter.beginMethod(statesEnumName, "await", EnumSet.noneOf(Modifier.class));
+    javaWriter.beginControlFlow("if (mIsFirstDone.compareAndSet(false, true))");
+    javaWriter.emitStatement("return null");
+    javaWriter.endControlFlow();
+    javaWriter.emitStatement("mTransitionPending = false");
+    javaWriter.beginControlFlow("if (mError != null)");
+    javaWriter.emitStatement("throw mError instanceof RuntimeException ? (RuntimeException) mError : new RuntimeException(mError)");
+    javaWriter.endControlFlow();
+    javaWriter.emitStatement("return Boolean.FALSE.equals(mResult) ? null : mNextState");
+    javaWriter.endMethod();
+    javaWriter.endType();
+  }
+
   private void generateRunOnMainThreadMethod(Model model, Writer writer) throws IOException {
     writer.append("  private boolean callConnectionOnMainThread(final Callable<Boolean> callable) {\n" +
         "    final CountDownLatch latch = new CountDownLatch(1);\n" +
@@ -808,7 +1396,10 @@ final class StateMachineCreator {
             CountDownLatch.class.getCanonicalName(),
             AtomicBoolean.class.getCanonicalName(),
             WeakReference.class.getCanonicalName(),
-            StateMachineFront.class.getCanonicalName());
+            TimeUnit.class.getCanonicalName(),
+            SignalDispatcherFactory.class.getCanonicalName(),
+            StateMachineFront.class.getCanonicalName(),
+            BoundedStateMachineFront.class.getCanonicalName());
 
         switch (model.getDispatchMode()) {
           case BACKGROUND_QUEUE:
@@ -817,6 +1408,15 @@ final class StateMachineCreator {
           case SHARED_BACKGROUND_QUEUE:
             javaWriter.emitImports(SharedBackgroundQueueDispatcher.class.getCanonicalName());
             break;
+          case VIRTUAL_THREAD:
+            javaWriter.emitImports(VirtualThreadDispatcher.class.getCanonicalName());
+            break;
+          case WORK_STEALING:
+            javaWriter.emitImports(WorkStealingDispatcher.class.getCanonicalName());
+            break;
+          case RING_BUFFER:
+            javaWriter.emitImports(RingBufferDispatcher.class.getCanonicalName());
+            break;
           case CALLING_THREAD:
             // Intentional fall-through
           default:
@@ -828,7 +1428,8 @@ final class StateMachineCreator {
         generateClassJavaDoc(model, javaWriter);
         javaWriter.emitAnnotation("IncompleteStateMachine");
         javaWriter.beginType(model.getTargetClassName(), "class", EnumSet.of(Modifier.PUBLIC),
-            model.getSourceClassName(), "StateMachineFront<" + model.getSourceClassName() + "." + model.getSignalsEnumName() + ">");
+            model.getSourceClassName(), "StateMachineFront<" + model.getSourceClassName() + "." + model.getSignalsEnumName() + ">",
+            "BoundedStateMachineFront<" + model.getSourceClassName() + "." + model.getSignalsEnumName() + ">");
 
         generateFieldDeclarations(model, javaWriter);
 
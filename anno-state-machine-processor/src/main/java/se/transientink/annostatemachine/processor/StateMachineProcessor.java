@@ -24,12 +24,14 @@ import com.jayway.annostatemachine.ParameterRef;
 import com.jayway.annostatemachine.SignalPayload;
 import com.jayway.annostatemachine.SignalRef;
 import com.jayway.annostatemachine.StateRef;
+import com.jayway.annostatemachine.annotations.Conflated;
 import com.jayway.annostatemachine.annotations.Connection;
 import com.jayway.annostatemachine.annotations.OnEnter;
 import com.jayway.annostatemachine.annotations.OnExit;
 import com.jayway.annostatemachine.annotations.Signals;
 import com.jayway.annostatemachine.annotations.StateMachine;
 import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.annotations.Urgent;
 
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -47,6 +49,8 @@ import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
@@ -63,6 +67,7 @@ final public class StateMachineProcessor extends AbstractProcessor {
 
     private static final String TAG = StateMachineProcessor.class.getSimpleName();
     private static final String GENERATED_FILE_SUFFIX = "Impl";
+    private static final String COMPLETION_STAGE_CLASS_NAME = "java.util.concurrent.CompletionStage";
     private final StateMachineCreator mStateMachineCreator;
 
     private Model mModel = new Model();
@@ -111,6 +116,13 @@ final public class StateMachineProcessor extends AbstractProcessor {
 
         StateMachine stateMachineAnnotation = element.getAnnotation(StateMachine.class);
         mModel.setDispatchMode(stateMachineAnnotation.dispatchMode(), stateMachineAnnotation.queueId());
+        mModel.setUseDispatchTable(stateMachineAnnotation.dispatchTable());
+        mModel.setDrainBatchSize(stateMachineAnnotation.drainBatchSize());
+        mModel.setRingBuffer(stateMachineAnnotation.ringBufferSize(), getWaitStrategyClassName(stateMachineAnnotation));
+        mModel.setQueueBounds(stateMachineAnnotation.queueCapacity(), stateMachineAnnotation.overflowPolicy());
+        mModel.setSignalsPerTurn(stateMachineAnnotation.signalsPerTurn());
+        mModel.setIdleTimeoutMillis(stateMachineAnnotation.idleTimeoutMillis());
+        mModel.setThreadPriority(stateMachineAnnotation.threadPriority());
 
         String topElementQualifiedName = ((TypeElement) topElement).getQualifiedName().toString();
         String sourceClassPackage = topElementQualifiedName.substring(0, topElementQualifiedName.lastIndexOf("."));
@@ -141,6 +153,15 @@ final public class StateMachineProcessor extends AbstractProcessor {
         mModel.aggregateConnectionsPerSignal();
     }
 
+    private String getWaitStrategyClassName(StateMachine stateMachineAnnotation) {
+        try {
+            return stateMachineAnnotation.waitStrategy().getCanonicalName();
+        } catch (MirroredTypeException e) {
+            // Class values are not loadable during annotation processing, use the type instead
+            return e.getTypeMirror().toString();
+        }
+    }
+
     private void collectOnExit(Element element) {
         if (!(element.getKind() == ElementKind.METHOD)) {
             // OnExit annotation on something other than a method
@@ -212,6 +233,12 @@ final public class StateMachineProcessor extends AbstractProcessor {
             if (valueElement.getKind() == ElementKind.ENUM_CONSTANT) {
                 SignalRef signalRef = new SignalRef(valueElement.getSimpleName().toString());
                 mModel.add(signalRef);
+                if (valueElement.getAnnotation(Conflated.class) != null) {
+                    mModel.addConflatedSignal(signalRef);
+                }
+                if (valueElement.getAnnotation(Urgent.class) != null) {
+                    mModel.addUrgentSignal(signalRef);
+                }
             }
         }
     }
@@ -227,10 +254,27 @@ final public class StateMachineProcessor extends AbstractProcessor {
         String connectionName = element.getSimpleName().toString();
         Connection annotation = element.getAnnotation(Connection.class);
 
-        ConnectionRef connectionRef = new ConnectionRef(connectionName, annotation.from(),
-                annotation.to(), annotation.on(), annotation.runOnMainThread(),
-                methodHasReturnTypeBoolean(element, processingEnv),
-                getParameters(element));
+        ConnectionRef connectionRef;
+        if (methodReturnsCompletionStage(element, processingEnv)) {
+            Types typesUtil = processingEnv.getTypeUtils();
+            TypeMirror resultType = getCompletionStageResultType(((ExecutableElement) element).getReturnType(), processingEnv);
+            boolean isGuard = resultType != null && typesUtil.isSameType(resultType,
+                    processingEnv.getElementUtils().getTypeElement(Boolean.class.getCanonicalName()).asType());
+            if (!isGuard && (resultType == null || !typesUtil.isSameType(resultType,
+                    processingEnv.getElementUtils().getTypeElement(Void.class.getCanonicalName()).asType()))) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Connection " + connectionName + " must return CompletionStage<Boolean> or CompletionStage<Void>", element);
+                return;
+            }
+            connectionRef = new ConnectionRef(connectionName, annotation.from(),
+                    annotation.to(), annotation.on(), annotation.runOnMainThread(),
+                    isGuard, true, annotation.runOn() == Connection.RunOn.WORKER, getParameters(element));
+        } else {
+            connectionRef = new ConnectionRef(connectionName, annotation.from(),
+                    annotation.to(), annotation.on(), annotation.runOnMainThread(),
+                    methodHasReturnTypeBoolean(element, processingEnv), false,
+                    annotation.runOn() == Connection.RunOn.WORKER, getParameters(element));
+        }
         mModel.add(connectionRef);
     }
 
@@ -249,6 +293,38 @@ final public class StateMachineProcessor extends AbstractProcessor {
         return params;
     }
 
+    private boolean methodReturnsCompletionStage(Element element, ProcessingEnvironment processingEnv) {
+        // CompletionStage is missing on Java 7 and older Android platforms
+        TypeElement completionStage = processingEnv.getElementUtils().getTypeElement(COMPLETION_STAGE_CLASS_NAME);
+        if (!(element instanceof ExecutableElement) || completionStage == null) {
+            return false;
+        }
+        Types typesUtil = processingEnv.getTypeUtils();
+        TypeMirror returnType = ((ExecutableElement) element).getReturnType();
+        return returnType.getKind() == TypeKind.DECLARED
+                && typesUtil.isAssignable(typesUtil.erasure(returnType), typesUtil.erasure(completionStage.asType()));
+    }
+
+    /**
+     * @return The type argument of the CompletionStage that the given type is or implements, or
+     * null if it is raw.
+     */
+    private TypeMirror getCompletionStageResultType(TypeMirror type, ProcessingEnvironment processingEnv) {
+        Types typesUtil = processingEnv.getTypeUtils();
+        TypeElement completionStage = processingEnv.getElementUtils().getTypeElement(COMPLETION_STAGE_CLASS_NAME);
+        if (typesUtil.isSameType(typesUtil.erasure(type), typesUtil.erasure(completionStage.asType()))) {
+            List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
+            return typeArguments.isEmpty() ? null : typeArguments.get(0);
+        }
+        for (TypeMirror supertype : typesUtil.directSupertypes(type)) {
+            TypeMirror resultType = getCompletionStageResultType(supertype, processingEnv);
+            if (resultType != null) {
+                return resultType;
+            }
+        }
+        return null;
+    }
+
     private boolean methodHasReturnTypeBoolean(Element element, ProcessingEnvironment processingEnv) {
         if (element instanceof ExecutableElement) {
             ExecutableElement methodElement = (ExecutableElement) element;
@@ -3,6 +3,13 @@ package com.jayway.annostatemachine;
 import com.jayway.annostatemachine.utils.StateMachineLogger;
 import com.jayway.annostatemachine.utils.SystemOutLogger;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A global settings object that configures AnnoStateMachine.
  */
@@ -10,6 +17,12 @@ public class AnnoStateMachine {
 
     private static StateMachineLogger sLogger = new SystemOutLogger();
 
+    private static volatile DispatcherThreadFactory sDispatcherThreadFactory = new DefaultDispatcherThreadFactory();
+
+    private static final long CONNECTION_WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private static volatile Executor sConnectionExecutor;
+
     public static void setLogger(StateMachineLogger logger) {
         sLogger = logger;
     }
@@ -17,4 +30,65 @@ public class AnnoStateMachine {
     public static StateMachineLogger getLogger() {
         return sLogger;
     }
+
+    /**
+     * Sets the factory for the threads of dispatchers created from now on. Dispatchers that
+     * already have a thread keep it.
+     */
+    public static void setDispatcherThreadFactory(DispatcherThreadFactory dispatcherThreadFactory) {
+        if (dispatcherThreadFactory == null) {
+            throw new IllegalArgumentException("Dispatcher thread factory must not be null");
+        }
+        sDispatcherThreadFactory = dispatcherThreadFactory;
+    }
+
+    public static DispatcherThreadFactory getDispatcherThreadFactory() {
+        return sDispatcherThreadFactory;
+    }
+
+    /**
+     * Sets the executor that runs the connections marked with
+     * {@link com.jayway.annostatemachine.annotations.Connection.RunOn#WORKER}.
+     */
+    public static void setConnectionExecutor(Executor connectionExecutor) {
+        if (connectionExecutor == null) {
+            throw new IllegalArgumentException("Connection executor must not be null");
+        }
+        sConnectionExecutor = connectionExecutor;
+    }
+
+    /**
+     * @return The executor set with {@link #setConnectionExecutor(Executor)}, or else a pool with
+     * one thread per processor, created when first asked for, whose threads end when idle.
+     */
+    public static Executor getConnectionExecutor() {
+        Executor connectionExecutor = sConnectionExecutor;
+        if (connectionExecutor == null) {
+            synchronized (AnnoStateMachine.class) {
+                connectionExecutor = sConnectionExecutor;
+                if (connectionExecutor == null) {
+                    connectionExecutor = createConnectionWorkerPool();
+                    sConnectionExecutor = connectionExecutor;
+                }
+            }
+        }
+        return connectionExecutor;
+    }
+
+    private static Executor createConnectionWorkerPool() {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threadCount, threadCount,
+                CONNECTION_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return sDispatcherThreadFactory.newThread(runnable,
+                                "ConnectionWorker-" + mThreadCount.incrementAndGet(), Thread.NORM_PRIORITY);
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
 }
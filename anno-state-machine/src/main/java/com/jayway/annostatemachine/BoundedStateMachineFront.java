@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine;
+
+/**
+ * A {@link StateMachineFront} that tells the sender when a signal was not queued. Generated state
+ * machines implement it. It is kept apart from {@link StateMachineFront} so that existing
+ * implementations of that interface do not have to change.
+ */
+public interface BoundedStateMachineFront<SignalType> extends StateMachineFront<SignalType> {
+
+    /**
+     * Sends a signal unless the state machine's dispatch queue is full.
+     *
+     * @return false if the signal was rejected or dropped due to the queue's
+     * {@link com.jayway.annostatemachine.dispatchers.OverflowPolicy}, or if the state machine has
+     * been shut down.
+     */
+    boolean trySend(SignalType signal, SignalPayload payload);
+}
@@ -34,6 +34,8 @@ public class ConnectionRef {
     private final List<String> mSignals;
     private final boolean mRunOnMainThread;
     private final boolean mHasGuard;
+    private final boolean mIsAsync;
+    private final boolean mRunOnWorker;
     private final String mSignalsAsString;
 
     public String getName() {
@@ -58,7 +60,17 @@ public class ConnectionRef {
 
     public boolean hasGuard() { return mHasGuard; }
 
+    /**
+     * @return true if the connection method returns a CompletionStage and the transition is taken
+     * when it completes.
+     */
+    public boolean isAsync() { return mIsAsync; }
+
     public ConnectionRef(String name, String from, String to, String signals, boolean runOnMainThread, boolean hasGuard, LinkedList<ParameterRef> parameters) {
+        this(name, from, to, signals, runOnMainThread, hasGuard, false, false, parameters);
+    }
+
+    public ConnectionRef(String name, String from, String to, String signals, boolean runOnMainThread, boolean hasGuard, boolean isAsync, boolean runOnWorker, LinkedList<ParameterRef> parameters) {
         mName = name;
         mFrom = from;
         mTo = to;
@@ -66,6 +78,8 @@ public class ConnectionRef {
         mSignals = collectSignals(signals);
         mRunOnMainThread = runOnMainThread;
         mHasGuard = hasGuard;
+        mIsAsync = isAsync;
+        mRunOnWorker = runOnWorker;
         mParameters = parameters;
     }
 
@@ -80,13 +94,17 @@ public class ConnectionRef {
 
     @Override
     public String toString() {
-        return mName + ": " + mFrom + " --" + mSignals + "--> " + mTo + (mHasGuard ? " has guard" : "");
+        return mName + ": " + mFrom + " --" + mSignals + "--> " + mTo + (mHasGuard ? " has guard" : "") + (mIsAsync ? " async" : "") + (mRunOnWorker ? " on worker" : "");
     }
 
     public boolean getRunOnMainThread() {
         return mRunOnMainThread;
     }
 
+    public boolean getRunOnWorker() {
+        return mRunOnWorker;
+    }
+
     public LinkedList<ParameterRef> getParameters() {
         return mParameters;
     }
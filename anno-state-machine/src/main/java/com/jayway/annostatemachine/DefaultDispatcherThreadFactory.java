@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine;
+
+/**
+ * Creates threads with the name and priority asked for, which are non-daemon threads unless
+ * told otherwise.
+ */
+public class DefaultDispatcherThreadFactory implements DispatcherThreadFactory {
+
+    private final boolean mDaemon;
+
+    public DefaultDispatcherThreadFactory() {
+        this(false);
+    }
+
+    /**
+     * @param daemon If true the threads do not keep the JVM from exiting.
+     */
+    public DefaultDispatcherThreadFactory(boolean daemon) {
+        mDaemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable, String name, int priority) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(mDaemon);
+        thread.setPriority(priority);
+        return thread;
+    }
+}
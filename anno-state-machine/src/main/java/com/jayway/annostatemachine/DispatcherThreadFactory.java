@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine;
+
+/**
+ * Creates the threads of dispatchers that have a thread of their own, that is
+ * {@link com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher},
+ * {@link com.jayway.annostatemachine.dispatchers.SharedBackgroundQueueDispatcher} and
+ * {@link com.jayway.annostatemachine.dispatchers.RingBufferDispatcher}. Set it with
+ * {@link AnnoStateMachine#setDispatcherThreadFactory(DispatcherThreadFactory)}.
+ * <p>
+ * A factory may name the threads differently, make them daemons or wrap the runnable to pin the
+ * thread to a CPU before it starts dispatching. The thread must not be started.
+ */
+public interface DispatcherThreadFactory {
+
+    /**
+     * @param runnable The dispatch loop the thread should run.
+     * @param name     The name of the state machine class, or of the shared queue and its id.
+     * @param priority The priority asked for with
+     *                 {@link com.jayway.annostatemachine.annotations.StateMachine#threadPriority()}.
+     */
+    Thread newThread(Runnable runnable, String name, int priority);
+}
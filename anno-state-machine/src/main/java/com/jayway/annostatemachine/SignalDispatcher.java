@@ -18,6 +18,8 @@ package com.jayway.annostatemachine;
 
 import com.jayway.annostatemachine.utils.StateMachineLogger;
 
+import java.util.concurrent.TimeUnit;
+
 public abstract class SignalDispatcher {
 
     public SignalDispatcher() {
@@ -25,7 +27,53 @@ public abstract class SignalDispatcher {
 
     public abstract void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger);
 
+    /**
+     * Same as {@link #dispatch(Enum, SignalPayload, DispatchCallback, StateMachineLogger)} but
+     * tells whether the signal was accepted. Dispatchers with a bounded queue return false when
+     * the queue is full and the signal was rejected or dropped.
+     */
+    public boolean tryDispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        dispatch(signal, payload, callback, logger);
+        return true;
+    }
+
+    /**
+     * Dispatches a signal that is marked with {@link com.jayway.annostatemachine.annotations.Conflated}.
+     * Dispatchers with a queue replace the payload of the same signal if it is still waiting to be
+     * dispatched for the same callback. By default the signal is dispatched like any other.
+     *
+     * @return See {@link #tryDispatch(Enum, SignalPayload, DispatchCallback, StateMachineLogger)}.
+     */
+    public boolean tryDispatchConflated(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        return tryDispatch(signal, payload, callback, logger);
+    }
+
+    /**
+     * Dispatches a signal that is marked with {@link com.jayway.annostatemachine.annotations.Urgent}.
+     * Dispatchers with a queue dispatch it before any non urgent signals that are waiting. By
+     * default the signal is dispatched like any other.
+     *
+     * @return See {@link #tryDispatch(Enum, SignalPayload, DispatchCallback, StateMachineLogger)}.
+     */
+    public boolean tryDispatchUrgent(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        return tryDispatch(signal, payload, callback, logger);
+    }
+
     public abstract void runOnDispatchThread(Runnable runnable, StateMachineLogger logger);
 
     public abstract void shutDown();
+
+    /**
+     * Stops accepting signals, gives the signals that have already been sent up to the given time
+     * to be dispatched and then shuts down.
+     *
+     * @return The number of signals and runnables that were discarded since they had not been
+     * run when the time ran out. By default the dispatcher is shut down right away, which is
+     * enough for dispatchers that do not queue signals.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public int shutDownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        shutDown();
+        return 0;
+    }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine;
+
+/**
+ * Creates the dispatcher for a state machine that is initialized with the factory instead of
+ * using the dispatcher chosen by its {@link com.jayway.annostatemachine.annotations.StateMachine}
+ * annotation.
+ * <p>
+ * The dispatcher must dispatch the signals of a state machine one at a time. Only state machines
+ * declared with {@link com.jayway.annostatemachine.annotations.StateMachine.DispatchMode#CALLING_THREAD}
+ * serialize concurrent sends themselves, so a dispatcher that dispatches on the calling thread
+ * should only be given to those.
+ */
+public interface SignalDispatcherFactory {
+    SignalDispatcher create();
+}
@@ -17,6 +17,7 @@
 package com.jayway.annostatemachine;
 
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 public class SignalPayload<T extends Enum> {
     private HashMap<String, String> mStringMap;
@@ -24,6 +25,8 @@ public class SignalPayload<T extends Enum> {
     private HashMap<String, Integer> mIntegerMap;
     private HashMap<String, Object> mObjectMap;
     private T mSignal;
+    private boolean mHasDeadline;
+    private long mDeadlineNanos;
 
     public SignalPayload put(String key, Boolean value) {
         if (mBooleanMap == null) {
@@ -90,6 +93,24 @@ public class SignalPayload<T extends Enum> {
         return mapValue == null ? defaultValue : mapValue;
     }
 
+    /**
+     * Sets how long the signal stays relevant after this call. A signal that is still waiting in
+     * a background queue when the time has run out is dropped instead of being dispatched.
+     */
+    public SignalPayload setTimeToLive(long timeToLive, TimeUnit unit) {
+        mDeadlineNanos = System.nanoTime() + unit.toNanos(timeToLive);
+        mHasDeadline = true;
+        return this;
+    }
+
+    /**
+     * @return true if a time to live has been set and it has run out.
+     */
+    public boolean isExpired() {
+        // Compared as a difference since nanoTime may overflow
+        return mHasDeadline && System.nanoTime() - mDeadlineNanos > 0;
+    }
+
     // Intentionally set to package-private so that the signal is not modified by client code.
     void setSignal(T signal) {
         mSignal = signal;
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a signal in a {@link Signals} enum as conflated. If the signal is sent while an earlier
+ * send of it is still waiting in the dispatch queue, the waiting signal gets the new payload
+ * instead of a second signal being queued. The signal keeps its place in the queue.
+ * <p>
+ * Meant for signals where only the latest value matters, such as progress or sensor readings.
+ * Has no effect with {@link StateMachine.DispatchMode#CALLING_THREAD} or
+ * {@link StateMachine.DispatchMode#RING_BUFFER} since signals never wait in a queue there that
+ * could be updated.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Conflated {
+}
@@ -21,6 +21,21 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/**
+ * Marks a method that is called when the state machine gets a signal in a state. A method that
+ * returns boolean is a guard, the transition is only taken if it returns true.
+ * <p>
+ * A method may also return a {@code CompletionStage<Boolean>} or {@code CompletionStage<Void>}.
+ * Then the transition is taken when the stage completes, without blocking the dispatch thread,
+ * unless it completes with false or exceptionally. Signals sent in the meantime are dispatched
+ * after it has completed, and connections after it are not evaluated for the signal. A stage that
+ * has already completed when it is returned is handled like the result of a synchronous
+ * connection.
+ * <p>
+ * A connection with {@link RunOn#WORKER} is handled the same way, with the stage being the method
+ * running on the connection executor, see
+ * {@link com.jayway.annostatemachine.AnnoStateMachine#setConnectionExecutor(java.util.concurrent.Executor)}.
+ */
 @Retention(RetentionPolicy.SOURCE)
 @Target(ElementType.METHOD)
 public @interface Connection {
@@ -29,4 +44,23 @@ public @interface Connection {
     String to();
     String on();
     boolean runOnMainThread() default false;
+    RunOn runOn() default RunOn.DISPATCH_THREAD;
+
+    /**
+     * Where the connection method is called.
+     */
+    enum RunOn {
+        /**
+         * The connection is called on the dispatch thread, or on the main thread if
+         * {@link #runOnMainThread()} is set.
+         */
+        DISPATCH_THREAD,
+
+        /**
+         * The connection is called on the connection executor and the dispatch thread moves on to
+         * other state machines in the meantime. It can not be combined with
+         * {@link #runOnMainThread()}, can not return a CompletionStage and must have a to state.
+         */
+        WORKER
+    }
 }
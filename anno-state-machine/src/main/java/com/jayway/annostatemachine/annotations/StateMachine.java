@@ -16,6 +16,13 @@
 
 package com.jayway.annostatemachine.annotations;
 
+import com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchers.BlockingWaitStrategy;
+import com.jayway.annostatemachine.dispatchers.OverflowPolicy;
+import com.jayway.annostatemachine.dispatchers.RingBufferDispatcher;
+import com.jayway.annostatemachine.dispatchers.SharedBackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchers.WaitStrategy;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -47,6 +54,77 @@ public @interface StateMachine {
      */
     int queueId() default ID_GLOBAL_SHARED_QUEUE;
 
+    /**
+     * If true, the generated state machine finds the connections to evaluate for a signal by
+     * looking up the current state and the signal in a static table instead of comparing the
+     * signal to each signal the state has connections for. The lookup cost is then the same no
+     * matter how many signals the state machine has. The order in which connections are
+     * evaluated is not affected.
+     */
+    boolean dispatchTable() default false;
+
+    /**
+     * The maximum number of signals the background thread dispatches in one go when
+     * {@link DispatchMode#BACKGROUND_QUEUE}, {@link DispatchMode#VIRTUAL_THREAD} or
+     * {@link DispatchMode#WORK_STEALING} is used. Signals sent while the thread is busy are
+     * picked up without waking it up again, a larger batch means fewer round trips through the
+     * underlying executor during bursts.
+     */
+    int drainBatchSize() default BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE;
+
+    /**
+     * How long the background thread of a {@link DispatchMode#BACKGROUND_QUEUE} state machine
+     * waits for signals before it exits. The next signal starts a new thread. By default the
+     * thread is kept until the state machine is shut down.
+     */
+    long idleTimeoutMillis() default BackgroundQueueDispatcher.NO_IDLE_TIMEOUT;
+
+    /**
+     * The maximum number of signals that may wait to be dispatched. By default the queue is
+     * unbounded. Used by {@link DispatchMode#BACKGROUND_QUEUE}, {@link DispatchMode#VIRTUAL_THREAD}
+     * and {@link DispatchMode#WORK_STEALING} per state machine, and by
+     * {@link DispatchMode#SHARED_BACKGROUND_QUEUE} per queue id in which case the first state
+     * machine to use the queue decides.
+     */
+    int queueCapacity() default BackgroundQueueDispatcher.UNBOUNDED_CAPACITY;
+
+    /**
+     * What to do with signals sent when the queue is full, see {@link #queueCapacity()}.
+     */
+    OverflowPolicy overflowPolicy() default OverflowPolicy.BLOCK;
+
+    /**
+     * Gives the state machine a queue of its own when {@link DispatchMode#SHARED_BACKGROUND_QUEUE}
+     * is used. The shared thread takes turns between the queues and dispatches at most this many
+     * signals from each per turn, so that a busy state machine can not hold up the others on the
+     * thread. The queue capacity then applies to the state machine's own queue. By default the
+     * state machine uses the common FIFO queue of the thread.
+     */
+    int signalsPerTurn() default SharedBackgroundQueueDispatcher.NO_FAIR_SHARE;
+
+    /**
+     * The number of pre-allocated signal slots when {@link DispatchMode#RING_BUFFER} is used.
+     * Must be a power of two. Senders wait when all slots are taken.
+     */
+    int ringBufferSize() default RingBufferDispatcher.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * How the dispatch thread waits for signals when {@link DispatchMode#RING_BUFFER} is used.
+     * See {@link BlockingWaitStrategy}, {@link com.jayway.annostatemachine.dispatchers.YieldingWaitStrategy}
+     * and {@link com.jayway.annostatemachine.dispatchers.BusySpinWaitStrategy}.
+     */
+    Class<? extends WaitStrategy> waitStrategy() default BlockingWaitStrategy.class;
+
+    /**
+     * The priority of the dispatch thread when {@link DispatchMode#BACKGROUND_QUEUE},
+     * {@link DispatchMode#SHARED_BACKGROUND_QUEUE} or {@link DispatchMode#RING_BUFFER} is used.
+     * A shared thread gets the priority of the first state machine to use the queue. The threads
+     * are named after the state machine class, or the queue id for shared queues, and are created
+     * by the {@link com.jayway.annostatemachine.DispatcherThreadFactory} set in
+     * {@link com.jayway.annostatemachine.AnnoStateMachine}.
+     */
+    int threadPriority() default Thread.NORM_PRIORITY;
+
     /**
      * The possible dispatch modes.
      */
@@ -54,7 +132,8 @@ public @interface StateMachine {
         /**
          * The thread that sends a signal executes the dispatch code as well as the connection
          * methods which will block the calling thread. This is ok if you do not trigger long
-         * running operations.
+         * running operations. Signals sent from connections are dispatched after the current
+         * transition has completed.
          */
         CALLING_THREAD,
 
@@ -69,6 +148,28 @@ public @interface StateMachine {
          * queue id, they will also share the same queue and thread. If a queue id is not specified,
          * a global background queue is used.
          */
-        SHARED_BACKGROUND_QUEUE
+        SHARED_BACKGROUND_QUEUE,
+
+        /**
+         * Signals are dispatched in order on virtual threads, without a platform thread per
+         * state machine. Suitable for large numbers of state machines or connections that
+         * block. Falls back to a shared thread pool on runtimes without virtual threads.
+         */
+        VIRTUAL_THREAD,
+
+        /**
+         * Signals are dispatched in order on a pool with one thread per processor that is shared
+         * by all state machines using this mode. Scales to many state machines across all cores
+         * as long as connections do not block.
+         */
+        WORK_STEALING,
+
+        /**
+         * A background thread is created for the state machine and signals are handed over to
+         * it through a pre-allocated ring buffer, which avoids allocations when sending. Meant
+         * for latency sensitive state machines, see {@link #ringBufferSize()} and
+         * {@link #waitStrategy()}.
+         */
+        RING_BUFFER
     }
 }
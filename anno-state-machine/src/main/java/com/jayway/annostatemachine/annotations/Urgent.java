@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a signal in a {@link Signals} enum as urgent. Urgent signals are put in a separate lane
+ * of the dispatch queue that is always emptied before the normal one, so signals such as cancel
+ * or error are not held up by a backlog of ordinary signals. Signals within each lane are
+ * dispatched in the order they were sent.
+ * <p>
+ * The urgent lane has no capacity limit so urgent signals are never dropped or rejected due to
+ * a full queue. Has no effect with {@link StateMachine.DispatchMode#CALLING_THREAD} or
+ * {@link StateMachine.DispatchMode#RING_BUFFER}. A signal can not be both urgent and
+ * {@link Conflated}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Urgent {
+}
@@ -16,109 +16,136 @@
 
 package com.jayway.annostatemachine.dispatchers;
 
-import com.jayway.annostatemachine.DispatchCallback;
-import com.jayway.annostatemachine.SignalDispatcher;
-import com.jayway.annostatemachine.SignalPayload;
-import com.jayway.annostatemachine.utils.StateMachineLogger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches signals on a background thread. Signals and runnables are posted to a lock-free
+ * {@link Mailbox} so that sending threads never contend on a lock, and are then run in order on
+ * the thread of the dispatcher. The executor is only involved when the mailbox goes from empty to
+ * non-empty and after each batch of signals, not once per signal.
+ * <p>
+ * The queue is unbounded unless a capacity is given, in which case signals sent when the queue
+ * is full are handled according to an {@link OverflowPolicy}.
+ * <p>
+ * With an idle timeout the thread exits when no signals have arrived for that long and a new
+ * one is started by the next signal, so idle state machines do not hold on to a thread.
+ * <p>
+ * The thread is shut down with the dispatcher, or when the state machine has been garbage
+ * collected.
+ * <p>
+ * Sending is not free of allocations. The weak references to the state machine and the thread
+ * are reused, but each signal still allocates its dispatch task and a node in the mailbox queue,
+ * about 72 bytes on a 64 bit JVM with compressed references. Getting rid of them would take a
+ * queue whose nodes are the pooled tasks themselves, which does not fit how the mailbox drops
+ * and clears tasks from other threads. Use {@link RingBufferDispatcher} where sending must not
+ * allocate.
+ */
+public class BackgroundQueueDispatcher extends MailboxDispatcher {
 
-import java.lang.ref.WeakReference;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
+    private static final String TAG = BackgroundQueueDispatcher.class.getSimpleName();
 
-public class BackgroundQueueDispatcher extends SignalDispatcher {
+    /**
+     * The default maximum number of signals that are dispatched before the dispatcher thread
+     * goes back to its executor.
+     */
+    public static final int DEFAULT_DRAIN_BATCH_SIZE = 64;
 
-    private static final String TAG = BackgroundQueueDispatcher.class.getSimpleName();
+    /**
+     * The queue capacity that means no upper limit.
+     */
+    public static final int UNBOUNDED_CAPACITY = Mailbox.UNBOUNDED;
 
-    private ScheduledExecutorService mExecutor;
-    private AtomicBoolean mIsShutDown = new AtomicBoolean();
+    /**
+     * The idle timeout that keeps the thread alive until the dispatcher is shut down.
+     */
+    public static final long NO_IDLE_TIMEOUT = 0;
+
+    // Numbers the threads of dispatchers that are not given a name
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
 
     public BackgroundQueueDispatcher() {
-        super();
-        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        this(DEFAULT_DRAIN_BATCH_SIZE);
     }
 
-    public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
-        if (mIsShutDown.get()) {
-            logger.d(TAG, "Not dispatching signal " + signal + " since dispatcher has been shut down");
-            return;
-        }
-        mExecutor.submit(new DispatchRunnable(new WeakReference<>(callback),
-                new WeakReference<>(mExecutor), mIsShutDown, signal, payload, logger));
+    /**
+     * @param drainBatchSize The maximum number of signals to dispatch each time the dispatcher
+     *                       thread picks up work from its executor.
+     */
+    public BackgroundQueueDispatcher(int drainBatchSize) {
+        this(drainBatchSize, UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK);
     }
 
-    @Override
-    public void runOnDispatchThread(Runnable runnable, StateMachineLogger logger) {
-        if (mIsShutDown.get()) {
-            logger.d(TAG, "Not running " + runnable + " since dispatcher has been shut down");
-            return;
-        }
-        mExecutor.submit(runnable);
+    /**
+     * @param drainBatchSize The maximum number of signals to dispatch each time the dispatcher
+     *                       thread picks up work from its executor.
+     * @param capacity       The maximum number of signals waiting to be dispatched, or
+     *                       {@link #UNBOUNDED_CAPACITY}.
+     * @param overflowPolicy What to do with signals sent when the queue is full.
+     */
+    public BackgroundQueueDispatcher(int drainBatchSize, int capacity, OverflowPolicy overflowPolicy) {
+        this(drainBatchSize, capacity, overflowPolicy, NO_IDLE_TIMEOUT);
     }
 
-    private static class DispatchRunnable implements Runnable {
-
-        private static final boolean GC_WINDOW_ENABLED = false;
-        private final WeakReference<DispatchCallback> mCallbackRef;
-        private final WeakReference<ScheduledExecutorService> mExecutorRef;
-        private final Enum mSignal;
-        private final SignalPayload mPayLoad;
-        private final StateMachineLogger mLogger;
-        private final AtomicBoolean mIsShutDown;
-
-        DispatchRunnable(WeakReference<DispatchCallback> callbackRef,
-                                WeakReference<ScheduledExecutorService> executorRef,
-                                AtomicBoolean isShutDown,
-                                Enum signal, SignalPayload payload,
-                                StateMachineLogger logger) {
-            mCallbackRef = callbackRef;
-            mExecutorRef = executorRef;
-            mSignal = signal;
-            mPayLoad = payload;
-            mLogger = logger;
-            mIsShutDown = isShutDown;
-        }
+    /**
+     * @param drainBatchSize    The maximum number of signals to dispatch each time the dispatcher
+     *                          thread picks up work from its executor.
+     * @param capacity          The maximum number of signals waiting to be dispatched, or
+     *                          {@link #UNBOUNDED_CAPACITY}.
+     * @param overflowPolicy    What to do with signals sent when the queue is full.
+     * @param idleTimeoutMillis How long the thread waits for signals before it exits, or
+     *                          {@link #NO_IDLE_TIMEOUT}.
+     */
+    public BackgroundQueueDispatcher(int drainBatchSize, int capacity, OverflowPolicy overflowPolicy, long idleTimeoutMillis) {
+        this(drainBatchSize, capacity, overflowPolicy, idleTimeoutMillis, TAG + "-" + sThreadCount.incrementAndGet(),
+                Thread.NORM_PRIORITY);
+    }
 
-        @Override
-        public void run() {
-            // The WeakReference to the callback will rarely be garbage collected until all queued
-            // tasks are finished due to the lack of a window for garbage collection here. The next
-            // task will be run directly leading to a local hard reference to the
-            // DispatchCallback(state machine) which prevents the state machine and this dispatcher
-            // from being garbage collected.
-            if (GC_WINDOW_ENABLED) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (mIsShutDown.get()) {
-                mLogger.d(TAG, "Not dispatching signal " + mSignal + " since dispatcher has been shut down");
-                return;
-            }
-            DispatchCallback callback = mCallbackRef.get();
-            if (callback != null) {
-                callback.dispatchBlocking(mSignal, mPayLoad);
-            } else {
-                ScheduledExecutorService executor = mExecutorRef.get();
-                if (executor != null) {
-                    mLogger.d(TAG, "Shutting down executor since callback has been garbage collected");
-                    executor.shutdownNow();
-                }
-            }
-        }
+    /**
+     * @param drainBatchSize    See {@link #BackgroundQueueDispatcher(int, int, OverflowPolicy, long)}.
+     * @param capacity          See {@link #BackgroundQueueDispatcher(int, int, OverflowPolicy, long)}.
+     * @param overflowPolicy    See {@link #BackgroundQueueDispatcher(int, int, OverflowPolicy, long)}.
+     * @param idleTimeoutMillis See {@link #BackgroundQueueDispatcher(int, int, OverflowPolicy, long)}.
+     * @param threadName        The name passed to the
+     *                          {@link com.jayway.annostatemachine.DispatcherThreadFactory}.
+     * @param threadPriority    The priority passed to the factory.
+     */
+    public BackgroundQueueDispatcher(int drainBatchSize, int capacity, OverflowPolicy overflowPolicy, long idleTimeoutMillis,
+                                     String threadName, int threadPriority) {
+        this(drainBatchSize, capacity, overflowPolicy, idleTimeoutMillis, threadName, threadPriority, false);
     }
 
-    @Override
-    public void shutDown() {
-        mIsShutDown.set(true);
-        mExecutor.shutdownNow();
-        mExecutor = null;
+    /**
+     * @param handOff If true, signals sent from a connection on the dispatcher thread are
+     *                dispatched right after the current signal instead of at the back of the
+     *                queue, see {@link Mailbox}.
+     */
+    BackgroundQueueDispatcher(int drainBatchSize, int capacity, OverflowPolicy overflowPolicy, long idleTimeoutMillis,
+                              String threadName, int threadPriority, boolean handOff) {
+        super(createExecutor(idleTimeoutMillis, threadName, threadPriority), drainBatchSize, capacity, overflowPolicy,
+                handOff);
     }
 
-    boolean isShutDown() {
-        return mIsShutDown.get();
+    private static ExecutorService createExecutor(long idleTimeoutMillis, String threadName, int threadPriority) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative, was " + idleTimeoutMillis);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, idleTimeoutMillis, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DispatcherThreads(threadName, threadPriority));
+        if (idleTimeoutMillis != NO_IDLE_TIMEOUT) {
+            // The mailbox keeps the signals in order when the next one starts a new thread
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
     }
 
+    /**
+     * @return The executor that runs the dispatcher thread.
+     */
+    ExecutorService getExecutor() {
+        return getOwnExecutor();
+    }
 }
@@ -17,25 +17,50 @@
 package com.jayway.annostatemachine.dispatchers;
 
 
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Hands out one background queue per shared id and shuts it down when the last user has
+ * relinquished it. Each user gets a {@link Lease} of its own to relinquish, so a user that
+ * relinquishes more than once, or after its queue has been replaced, never affects the count of
+ * another queue. Acquiring and relinquishing never take a lock on the pool. Each queue has a
+ * reference count, and a count that has dropped to zero is never raised again. The next acquire
+ * replaces the queue with a new one instead.
+ * <p>
+ * The pool only holds queues weakly. A queue whose users are collected without relinquishing it
+ * is replaced on the next acquire as well. The thread of each queue is held on to until its count
+ * drops to zero though, so that a queue that was collected before its last user relinquished it
+ * still has its thread stopped.
+ * <p>
+ * Signals that one state machine on a queue sends to another from a connection are handed off
+ * on the queue thread, without going through the queue.
+ */
 class BackgroundQueuePool {
 
-    private static BackgroundQueuePool sInstance;
+    private static volatile BackgroundQueuePool sInstance;
 
-    private WeakHashMap<BackgroundQueueDispatcher, Info> mPool = new WeakHashMap<>();
+    private final ConcurrentHashMap<Integer, Entry> mPool = new ConcurrentHashMap<>();
 
     private BackgroundQueuePool() {
         super();
     }
 
-    synchronized static BackgroundQueuePool getInstance() {
-        if (sInstance == null) {
-            sInstance = new BackgroundQueuePool();
+    static BackgroundQueuePool getInstance() {
+        BackgroundQueuePool instance = sInstance;
+        if (instance == null) {
+            synchronized (BackgroundQueuePool.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new BackgroundQueuePool();
+                    sInstance = instance;
+                }
+            }
         }
-        return sInstance;
+        return instance;
     }
 
     synchronized static void reset() {
@@ -45,62 +70,142 @@ class BackgroundQueuePool {
         }
     }
 
-    private synchronized void destroy() {
-        for (BackgroundQueueDispatcher dispatcher : mPool.keySet()) {
-            dispatcher.shutDown();
+    private void destroy() {
+        for (Entry entry : mPool.values()) {
+            entry.shutDown();
         }
         mPool.clear();
     }
 
-    synchronized BackgroundQueueDispatcher acquire(int sharedId) {
-        BackgroundQueueDispatcher dispatcher = null;
-        Info info = null;
-        for (Map.Entry<BackgroundQueueDispatcher, Info> entry : mPool.entrySet()) {
-            if (entry.getValue().id == sharedId) {
-                info = entry.getValue();
-                dispatcher = entry.getKey();
-                break;
+    Lease acquire(int sharedId) {
+        return acquire(sharedId, BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    Lease acquire(int sharedId, int capacity, OverflowPolicy overflowPolicy) {
+        return acquire(sharedId, capacity, overflowPolicy, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * The capacity, overflow policy and thread priority are only used when a new dispatcher is
+     * created.
+     */
+    Lease acquire(int sharedId, int capacity, OverflowPolicy overflowPolicy, int threadPriority) {
+        Integer key = sharedId;
+        BackgroundQueueDispatcher created = null;
+        while (true) {
+            Entry entry = mPool.get(key);
+            if (entry != null) {
+                BackgroundQueueDispatcher dispatcher = entry.acquire();
+                if (dispatcher != null) {
+                    if (created != null) {
+                        // Another thread put its dispatcher in the pool first
+                        created.shutDown();
+                    }
+                    return new Lease(entry, dispatcher);
+                }
+                // Relinquished by all or collected, make room for a new one
+                mPool.remove(key, entry);
+                continue;
+            }
+            if (created == null) {
+                created = new BackgroundQueueDispatcher(BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE,
+                        capacity, overflowPolicy, BackgroundQueueDispatcher.NO_IDLE_TIMEOUT,
+                        "SharedBackgroundQueue-" + sharedId, threadPriority, true);
+            }
+            Entry createdEntry = new Entry(key, created);
+            if (mPool.putIfAbsent(key, createdEntry) == null) {
+                return new Lease(createdEntry, created);
             }
         }
+    }
 
-        if (info == null) {
-            info = new Info(sharedId);
-            info.count.incrementAndGet();
-            dispatcher = new BackgroundQueueDispatcher();
-        } else {
-            info.count.incrementAndGet();
+    /**
+     * Gives up the lease's hold on its queue. Relinquishing the same lease again has no effect.
+     */
+    void relinquish(Lease lease) {
+        if (!lease.mIsRelinquished.compareAndSet(false, true)) {
+            return;
+        }
+        Entry entry = lease.mEntry;
+        if (entry.release()) {
+            mPool.remove(entry.mKey, entry);
+            entry.shutDown();
+        }
+    }
+
+    /**
+     * One user's hold on a queue.
+     */
+    static final class Lease {
+        private final Entry mEntry;
+        private final BackgroundQueueDispatcher mDispatcher;
+        private final AtomicBoolean mIsRelinquished = new AtomicBoolean(false);
+
+        private Lease(Entry entry, BackgroundQueueDispatcher dispatcher) {
+            mEntry = entry;
+            mDispatcher = dispatcher;
         }
 
-        mPool.put(dispatcher, info);
-        return dispatcher;
+        BackgroundQueueDispatcher getDispatcher() {
+            return mDispatcher;
+        }
     }
 
-    void relinquish(int sharedId) {
-        BackgroundQueueDispatcher dispatcher = null;
-        Info info = null;
-        for (Map.Entry<BackgroundQueueDispatcher, Info> entry : mPool.entrySet()) {
-            if (entry.getValue().id == sharedId) {
-                info = entry.getValue();
-                dispatcher = entry.getKey();
-                break;
-            }
+    private static class Entry {
+        final Integer mKey;
+        final WeakReference<BackgroundQueueDispatcher> mDispatcherRef;
+        // Held strongly since the thread keeps running after the dispatcher has been collected
+        final ExecutorService mExecutor;
+        // The number of users, starting with the one that created the entry
+        final AtomicInteger mCount = new AtomicInteger(1);
+
+        Entry(Integer key, BackgroundQueueDispatcher dispatcher) {
+            mKey = key;
+            mDispatcherRef = new WeakReference<>(dispatcher);
+            mExecutor = dispatcher.getExecutor();
         }
 
-        if (info != null) {
-            if (info.count.decrementAndGet() == 0) {
+        void shutDown() {
+            BackgroundQueueDispatcher dispatcher = mDispatcherRef.get();
+            if (dispatcher != null) {
                 dispatcher.shutDown();
-                mPool.remove(dispatcher);
+            } else {
+                mExecutor.shutdownNow();
             }
         }
-    }
 
-    private static class Info {
-        int id;
-        AtomicInteger count;
+        /**
+         * @return The dispatcher, or null if it has been relinquished by all users or collected.
+         */
+        BackgroundQueueDispatcher acquire() {
+            while (true) {
+                int count = mCount.get();
+                if (count == 0) {
+                    return null;
+                }
+                BackgroundQueueDispatcher dispatcher = mDispatcherRef.get();
+                if (dispatcher == null) {
+                    return null;
+                }
+                if (mCount.compareAndSet(count, count + 1)) {
+                    return dispatcher;
+                }
+            }
+        }
 
-        public Info(int id) {
-            this.id = id;
-            count = new AtomicInteger(0);
+        /**
+         * @return true if this was the last user.
+         */
+        boolean release() {
+            while (true) {
+                int count = mCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (mCount.compareAndSet(count, count - 1)) {
+                    return count == 1;
+                }
+            }
         }
     }
 }
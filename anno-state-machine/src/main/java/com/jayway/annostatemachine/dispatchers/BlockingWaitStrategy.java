@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Parks the dispatch thread until a signal is sent. Uses no CPU while idle but the hand-over
+ * includes waking up a thread. Senders only take the lock when the dispatch thread is waiting.
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+
+    // The barrier is checked at least this often even without signals so that a dispatcher
+    // whose state machine has been garbage collected gets to stop.
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mSignalAvailable = mLock.newCondition();
+    private final AtomicInteger mNumWaiting = new AtomicInteger();
+
+    @Override
+    public void waitFor(Barrier barrier) throws InterruptedException {
+        if (barrier.isOpen()) {
+            return;
+        }
+        mLock.lock();
+        mNumWaiting.incrementAndGet();
+        try {
+            while (!barrier.isOpen()) {
+                mSignalAvailable.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            mNumWaiting.decrementAndGet();
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void signalAll() {
+        if (mNumWaiting.get() == 0) {
+            return;
+        }
+        mLock.lock();
+        try {
+            mSignalAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
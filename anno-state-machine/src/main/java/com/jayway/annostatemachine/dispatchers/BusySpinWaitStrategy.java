@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+/**
+ * Checks for signals in a tight loop. Gives the lowest hand-over latency but occupies a core
+ * all the time, so it should only be used when the dispatch thread can have a core of its own.
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public void waitFor(Barrier barrier) throws InterruptedException {
+        while (!barrier.isOpen()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    @Override
+    public void signalAll() {
+    }
+}
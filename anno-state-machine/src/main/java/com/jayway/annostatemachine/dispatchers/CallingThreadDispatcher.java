@@ -21,21 +21,111 @@ import com.jayway.annostatemachine.SignalDispatcher;
 import com.jayway.annostatemachine.SignalPayload;
 import com.jayway.annostatemachine.utils.StateMachineLogger;
 
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dispatches signals on the thread that sends them.
+ * <p>
+ * A signal sent from a connection, i.e. while the thread is already dispatching through this
+ * dispatcher, is not dispatched right away since the transition that sent it has not finished.
+ * It is put in a queue instead and dispatched when the current dispatch has returned, so each
+ * transition runs to completion and long chains of signals do not grow the stack. The queue is
+ * made of arrays that are reused, only growing when more signals than ever before are waiting.
+ */
 public class CallingThreadDispatcher extends SignalDispatcher {
 
     private static final String TAG = CallingThreadDispatcher.class.getSimpleName();
 
+    private static final int INITIAL_QUEUE_SIZE = 16;
+
+    // The thread that is dispatching, which is the only one that touches the queue
+    private final AtomicReference<Thread> mDispatchingThread = new AtomicReference<>();
+
+    private Enum[] mQueuedSignals = new Enum[INITIAL_QUEUE_SIZE];
+    private SignalPayload[] mQueuedPayloads = new SignalPayload[INITIAL_QUEUE_SIZE];
+    private DispatchCallback[] mQueuedCallbacks = new DispatchCallback[INITIAL_QUEUE_SIZE];
+    private int mHead;
+    private int mTail;
+
     public CallingThreadDispatcher() {
         super();
     }
 
     @Override
     public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
-        if (callback != null) {
-            callback.dispatchBlocking(signal, payload);
-        } else {
+        if (callback == null) {
             logger.e(TAG, "Ignoring signal dispatch, callback is null");
+            return;
+        }
+        Thread currentThread = Thread.currentThread();
+        if (mDispatchingThread.get() == currentThread) {
+            enqueue(signal, payload, callback);
+            return;
+        }
+        if (!mDispatchingThread.compareAndSet(null, currentThread)) {
+            // Another thread dispatches through this dispatcher for some other state machine,
+            // which never happens for dispatchers created by the state machine itself.
+            callback.dispatchBlocking(signal, payload);
+            return;
+        }
+        try {
+            callback.dispatchBlocking(signal, payload);
+            while (mHead != mTail) {
+                int index = mHead++;
+                DispatchCallback queuedCallback = mQueuedCallbacks[index];
+                Enum queuedSignal = mQueuedSignals[index];
+                SignalPayload queuedPayload = mQueuedPayloads[index];
+                mQueuedCallbacks[index] = null;
+                mQueuedSignals[index] = null;
+                mQueuedPayloads[index] = null;
+                queuedCallback.dispatchBlocking(queuedSignal, queuedPayload);
+            }
+        } finally {
+            clearQueue();
+            mDispatchingThread.set(null);
+        }
+    }
+
+    private void enqueue(Enum signal, SignalPayload payload, DispatchCallback callback) {
+        if (mTail == mQueuedSignals.length) {
+            makeRoom();
+        }
+        mQueuedSignals[mTail] = signal;
+        mQueuedPayloads[mTail] = payload;
+        mQueuedCallbacks[mTail] = callback;
+        mTail++;
+    }
+
+    private void makeRoom() {
+        int count = mTail - mHead;
+        // Moving the waiting signals to the front is enough if at most half of the slots are used
+        int size = count * 2 > mQueuedSignals.length ? mQueuedSignals.length * 2 : mQueuedSignals.length;
+        Enum[] signals = size == mQueuedSignals.length ? mQueuedSignals : new Enum[size];
+        SignalPayload[] payloads = size == mQueuedPayloads.length ? mQueuedPayloads : new SignalPayload[size];
+        DispatchCallback[] callbacks = size == mQueuedCallbacks.length ? mQueuedCallbacks : new DispatchCallback[size];
+        System.arraycopy(mQueuedSignals, mHead, signals, 0, count);
+        System.arraycopy(mQueuedPayloads, mHead, payloads, 0, count);
+        System.arraycopy(mQueuedCallbacks, mHead, callbacks, 0, count);
+        for (int i = count; i < mTail; i++) {
+            signals[i] = null;
+            payloads[i] = null;
+            callbacks[i] = null;
+        }
+        mQueuedSignals = signals;
+        mQueuedPayloads = payloads;
+        mQueuedCallbacks = callbacks;
+        mHead = 0;
+        mTail = count;
+    }
+
+    private void clearQueue() {
+        for (int i = mHead; i < mTail; i++) {
+            mQueuedSignals[i] = null;
+            mQueuedPayloads[i] = null;
+            mQueuedCallbacks[i] = null;
         }
+        mHead = 0;
+        mTail = 0;
     }
 
     @Override
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of conflated signals that are waiting to be dispatched so that a newer send of the
+ * same signal to the same state machine can replace the payload of the waiting one.
+ */
+class Conflation {
+
+    private final ConcurrentHashMap<Key, Entry> mPending = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the payload of a waiting dispatch of the signal, if there is one.
+     *
+     * @return true if the payload was handed to a waiting dispatch, false if a new dispatch
+     * has to be queued.
+     */
+    boolean replacePending(DispatchCallback callback, Enum signal, SignalPayload payload) {
+        Entry entry = mPending.get(new Key(callback, signal));
+        return entry != null && entry.replace(payload);
+    }
+
+    /**
+     * Registers a new dispatch as the one later sends should update. The entry must be queued
+     * by the caller, or passed to {@link #unregister(Entry)} if that fails. If the queued
+     * dispatch is dropped without running the entry must be passed to {@link Entry#discard()}.
+     */
+    Entry register(DispatchCallback callback, Enum signal, SignalPayload payload) {
+        Entry entry = new Entry(new Key(callback, signal), payload);
+        mPending.put(entry.mKey, entry);
+        return entry;
+    }
+
+    void unregister(Entry entry) {
+        mPending.remove(entry.mKey, entry);
+    }
+
+    void clear() {
+        mPending.clear();
+    }
+
+    final class Entry {
+        private final Key mKey;
+        private final AtomicReference<SignalPayload> mPayload;
+
+        private Entry(Key key, SignalPayload payload) {
+            mKey = key;
+            mPayload = new AtomicReference<>(payload);
+        }
+
+        private boolean replace(SignalPayload payload) {
+            while (true) {
+                SignalPayload current = mPayload.get();
+                if (current == null) {
+                    // Already taken for dispatch
+                    return false;
+                }
+                if (mPayload.compareAndSet(current, payload)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Called when the dispatch is run. Later sends will queue a new dispatch.
+         *
+         * @return The latest payload.
+         */
+        SignalPayload take() {
+            unregister(this);
+            return mPayload.getAndSet(null);
+        }
+
+        /**
+         * Called when the dispatch is dropped without being run. Later sends will queue a new
+         * dispatch.
+         */
+        void discard() {
+            // Cleared before unregistering so that a send that still finds the entry does not
+            // hand its payload to a dispatch that will never run.
+            mPayload.set(null);
+            unregister(this);
+        }
+    }
+
+    private static final class Key {
+        private final DispatchCallback mCallback;
+        private final Enum mSignal;
+
+        Key(DispatchCallback callback, Enum signal) {
+            mCallback = callback;
+            mSignal = signal;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return mCallback == other.mCallback && mSignal == other.mSignal;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mCallback) + mSignal.hashCode();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.AnnoStateMachine;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of one dispatcher through the configured
+ * {@link com.jayway.annostatemachine.DispatcherThreadFactory}.
+ */
+class DispatcherThreads implements ThreadFactory {
+
+    private final String mName;
+    private final int mPriority;
+
+    DispatcherThreads(String name, int priority) {
+        if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+            throw new IllegalArgumentException("Thread priority must be between " + Thread.MIN_PRIORITY
+                    + " and " + Thread.MAX_PRIORITY + ", was " + priority);
+        }
+        mName = name;
+        mPriority = priority;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return AnnoStateMachine.getDispatcherThreadFactory().newThread(runnable, mName, mPriority);
+    }
+}
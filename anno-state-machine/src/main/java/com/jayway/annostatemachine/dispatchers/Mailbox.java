@@ -0,0 +1,522 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.Config;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A multi producer, single consumer queue of dispatch tasks.
+ * <p>
+ * Posting a task never takes a lock. The task that makes the mailbox go from empty to non-empty
+ * schedules the mailbox itself on the executor, which then runs the posted tasks in FIFO order
+ * until the mailbox is empty again. Tasks posted while the mailbox is being drained are picked up
+ * by the running drain without touching the executor. Since at most one drain is scheduled at a
+ * time the tasks are run serially even if the executor has more than one thread.
+ * <p>
+ * A drain runs at most a batch of tasks before it schedules itself again at the end of the
+ * executor's queue. This lets other work on the same executor run in between large bursts.
+ * <p>
+ * A mailbox can be given a capacity, which is the number of tasks that may wait in the queue.
+ * Tasks posted when the queue is full are handled according to the {@link OverflowPolicy}.
+ * Exempt tasks, which the dispatcher itself depends on, take their place in the normal lane but
+ * do not count towards the capacity and are never refused or dropped. Each of them borrows a
+ * place, which is paid back as the following tasks are taken out of the queue.
+ * <p>
+ * Urgent tasks go in a separate, unbounded lane. A drain always runs the waiting urgent tasks
+ * before the next normal one.
+ * <p>
+ * A mailbox can also be told to hand off tasks posted by the task that is running. These go in
+ * a plain list that only the draining thread touches and are run, in the order they were
+ * posted, right after the task that posted them and before anything else in the mailbox. They
+ * count towards the batch but not towards the capacity. Tasks that do not fit in the batch are
+ * moved to the back of the normal lane, where they take up free places like any other task or
+ * borrow one if there is none.
+ */
+class Mailbox implements Runnable {
+
+    private static final String TAG = Mailbox.class.getSimpleName();
+
+    /**
+     * The capacity of a mailbox without an upper limit.
+     */
+    static final int UNBOUNDED = 0;
+
+    // How often a sender that waits for room checks if the mailbox has been cleared
+    private static final long CLEARED_CHECK_INTERVAL_MILLIS = 100;
+
+    // The executor whose drain is running on the current thread, used to detect a task that
+    // posts to a full mailbox which can only be drained by the thread it would block
+    private static final ThreadLocal<Executor> sDrainExecutor = new ThreadLocal<>();
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> mUrgentTasks = new ConcurrentLinkedQueue<>();
+
+    // The number of posted tasks that have not finished running, in both lanes. A task is always
+    // added to its lane before the count is incremented so a drain that sees a non zero count
+    // always finds a task in one of them.
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    // Only changed by moving the mailbox, which takes effect at the next drain
+    private volatile Executor mExecutor;
+    private final int mBatchSize;
+
+    // One permit per free place in the queue, null if unbounded. A permit is taken before a task
+    // is added to the queue and given back when the task is taken out of it.
+    private final Semaphore mFreeSlots;
+    private final OverflowPolicy mOverflowPolicy;
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile boolean mIsCleared;
+    // The thread currently draining, used to hand off tasks and to detect a task that posts to
+    // its own full mailbox
+    private final AtomicReference<Thread> mDrainThread = new AtomicReference<>();
+
+    private final Object mEmptyMonitor = new Object();
+    // Set once someone has waited for the mailbox to become empty. From then on a drain that
+    // empties the mailbox wakes up the waiters.
+    private volatile boolean mHasEmptyWaiters;
+
+    // Tasks posted from the draining thread, null unless hand off is enabled. Only used by the
+    // draining thread and always empty between drains.
+    private final ArrayDeque<Runnable> mHandedOffTasks;
+    // The number of tasks added to the normal lane without a permit, exempt tasks and handed off
+    // tasks that found it full. Taking a task out of the queue pays one back instead of releasing
+    // a permit.
+    private final AtomicInteger mBorrowedSlots = new AtomicInteger();
+
+    /**
+     * @param executor  The executor to run drains on.
+     * @param batchSize The maximum number of tasks to run per drain.
+     */
+    Mailbox(Executor executor, int batchSize) {
+        this(executor, batchSize, UNBOUNDED, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param executor       The executor to run drains on.
+     * @param batchSize      The maximum number of tasks to run per drain.
+     * @param capacity       The maximum number of tasks waiting to run, or {@link #UNBOUNDED}.
+     * @param overflowPolicy What to do with tasks posted when the mailbox is full.
+     */
+    Mailbox(Executor executor, int batchSize, int capacity, OverflowPolicy overflowPolicy) {
+        this(executor, batchSize, capacity, overflowPolicy, false);
+    }
+
+    /**
+     * @param executor       The executor to run drains on.
+     * @param batchSize      The maximum number of tasks to run per drain.
+     * @param capacity       The maximum number of tasks waiting to run, or {@link #UNBOUNDED}.
+     * @param overflowPolicy What to do with tasks posted when the mailbox is full.
+     * @param handOff        If true, tasks posted by a running task are run right after it.
+     */
+    Mailbox(Executor executor, int batchSize, int capacity, OverflowPolicy overflowPolicy, boolean handOff) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative, was " + capacity);
+        }
+        mExecutor = executor;
+        mBatchSize = batchSize;
+        mFreeSlots = capacity == UNBOUNDED ? null : new Semaphore(capacity);
+        mOverflowPolicy = overflowPolicy;
+        mHandedOffTasks = handOff ? new ArrayDeque<Runnable>() : null;
+    }
+
+    /**
+     * Posts a task to the mailbox.
+     *
+     * @return false if the task was not added since the mailbox was full.
+     * @throws java.util.concurrent.RejectedExecutionException if the mailbox needed to schedule a
+     *                                                         drain and the executor rejected it.
+     */
+    boolean post(Runnable task) {
+        if (mHandedOffTasks != null && Thread.currentThread() == mDrainThread.get()) {
+            mHandedOffTasks.add(task);
+            return true;
+        }
+        if (mFreeSlots == null || mFreeSlots.tryAcquire()) {
+            enqueue(mTasks, task);
+            return true;
+        }
+        switch (mOverflowPolicy) {
+            case BLOCK:
+                if (!isDrainingOwnExecutor() && awaitFreeSlot()) {
+                    enqueue(mTasks, task);
+                    return true;
+                }
+                mRejectedCount.incrementAndGet();
+                return false;
+            case DROP_OLDEST:
+                // The new task takes over the slot of the oldest one. Adding before removing
+                // keeps the pending count from ever exceeding the number of tasks in the queue.
+                mTasks.offer(task);
+                Runnable droppedTask = removeOldestDroppable();
+                if (droppedTask == null) {
+                    // Only exempt tasks are left since the drain has taken the new one as well,
+                    // so it is counted as a task that was added over the capacity.
+                    mBorrowedSlots.incrementAndGet();
+                    countAdded();
+                    return true;
+                }
+                mDroppedCount.incrementAndGet();
+                if (droppedTask == task) {
+                    // Nothing older could be dropped, for example since the drain took the last
+                    // task after the free slot check, so the new task was dropped itself
+                    return false;
+                }
+                notifyDropped(droppedTask);
+                return true;
+            case DROP_NEWEST:
+                mDroppedCount.incrementAndGet();
+                return false;
+            case REJECT:
+                // Intentional fall-through
+            default:
+                mRejectedCount.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Posts a task to the normal lane that is neither refused nor dropped when the mailbox is
+     * full. Meant for the dispatcher's own tasks, which the state machine depends on.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the mailbox needed to schedule a
+     *                                                         drain and the executor rejected it.
+     */
+    void postExempt(Runnable task) {
+        if (mHandedOffTasks != null && Thread.currentThread() == mDrainThread.get()) {
+            mHandedOffTasks.add(task);
+            return;
+        }
+        if (mFreeSlots != null) {
+            mBorrowedSlots.incrementAndGet();
+        }
+        enqueue(mTasks, new ExemptTask(task));
+    }
+
+    /**
+     * Posts a task to the urgent lane, which does not count towards the capacity.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the mailbox needed to schedule a
+     *                                                         drain and the executor rejected it.
+     */
+    void postUrgent(Runnable task) {
+        enqueue(mUrgentTasks, task);
+    }
+
+    /**
+     * A task that has to know when it is removed from the mailbox without being run.
+     */
+    interface DroppableTask extends Runnable {
+        /**
+         * Called when the task is dropped by {@link OverflowPolicy#DROP_OLDEST} or removed by
+         * {@link Mailbox#clear()}.
+         */
+        void onDropped();
+    }
+
+    private void enqueue(ConcurrentLinkedQueue<Runnable> lane, Runnable task) {
+        lane.offer(task);
+        countAdded();
+    }
+
+    private void countAdded() {
+        if (mPendingCount.getAndIncrement() == 0) {
+            mExecutor.execute(this);
+        }
+    }
+
+    /**
+     * Adds a task to the normal lane, borrowing a place if the mailbox is full.
+     */
+    private void enqueueOverCapacity(Runnable task) {
+        if (mFreeSlots != null && !mFreeSlots.tryAcquire()) {
+            mBorrowedSlots.incrementAndGet();
+        }
+        enqueue(mTasks, task);
+    }
+
+    /**
+     * @return true if a borrowed place was paid back, in which case no permit is to be released.
+     */
+    private boolean payBackBorrowedSlot() {
+        int borrowedSlots;
+        while ((borrowedSlots = mBorrowedSlots.get()) > 0) {
+            if (mBorrowedSlots.compareAndSet(borrowedSlots, borrowedSlots - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the oldest task in the normal lane that is not exempt.
+     *
+     * @return The removed task, or null if there was none.
+     */
+    private Runnable removeOldestDroppable() {
+        while (true) {
+            Runnable oldest = null;
+            for (Runnable task : mTasks) {
+                if (!(task instanceof ExemptTask)) {
+                    oldest = task;
+                    break;
+                }
+            }
+            // Removing fails if the drain took the task meanwhile, then look again
+            if (oldest == null || mTasks.remove(oldest)) {
+                return oldest;
+            }
+        }
+    }
+
+    /**
+     * Runs the following drains on another executor. The tasks stay in order and never run at
+     * the same time since a drain that is already scheduled or running on the old executor
+     * finishes there before the next one is scheduled on the new one.
+     */
+    void moveTo(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return true if the current thread is running a drain of this mailbox, or of another
+     * mailbox on the same single thread executor, in which case waiting for room could wait for
+     * itself. On an executor with more threads another one can drain this mailbox meanwhile. A
+     * single thread executor is recognized as a ThreadPoolExecutor with at most one thread, like
+     * the ones of the background queue dispatchers.
+     */
+    private boolean isDrainingOwnExecutor() {
+        if (Thread.currentThread() == mDrainThread.get()) {
+            return true;
+        }
+        Executor executor = mExecutor;
+        return sDrainExecutor.get() == executor && isSingleThreaded(executor);
+    }
+
+    private static boolean isSingleThreaded(Executor executor) {
+        return executor instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) executor).getMaximumPoolSize() == 1;
+    }
+
+    private boolean awaitFreeSlot() {
+        mBlockedCount.incrementAndGet();
+        try {
+            while (!mFreeSlots.tryAcquire(CLEARED_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (mIsCleared) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Removes all tasks that have not started running. Only to be used when the mailbox is being
+     * discarded since the pending count is left as is, which prevents any further drains.
+     *
+     * @return The number of tasks removed.
+     */
+    int clear() {
+        mIsCleared = true;
+        int removedCount = 0;
+        Runnable task;
+        while ((task = mUrgentTasks.poll()) != null) {
+            notifyDropped(task);
+            removedCount++;
+        }
+        while ((task = mTasks.poll()) != null) {
+            notifyDropped(task);
+            removedCount++;
+        }
+        wakeEmptyWaiters();
+        return removedCount;
+    }
+
+    private static void notifyDropped(Runnable task) {
+        if (task instanceof DroppableTask) {
+            ((DroppableTask) task).onDropped();
+        }
+    }
+
+    /**
+     * Waits until all posted tasks have finished running.
+     *
+     * @return false if the time ran out or the mailbox was cleared first.
+     */
+    boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mEmptyMonitor) {
+            // Set before reading the count so that a drain that empties the mailbox after the
+            // read sees it and waits for the monitor to notify.
+            mHasEmptyWaiters = true;
+            while (mPendingCount.get() != 0) {
+                long remaining = deadline - System.nanoTime();
+                if (mIsCleared || remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mEmptyMonitor, remaining);
+            }
+            return true;
+        }
+    }
+
+    private void wakeEmptyWaiters() {
+        if (mHasEmptyWaiters) {
+            synchronized (mEmptyMonitor) {
+                mEmptyMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return The number of times a sender had to wait for room in the mailbox.
+     */
+    long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * @return The number of tasks that were not added since the mailbox was full.
+     */
+    long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return The number of tasks dropped by {@link OverflowPolicy#DROP_NEWEST} or
+     * {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public void run() {
+        Thread currentThread = Thread.currentThread();
+        mDrainThread.set(currentThread);
+        Executor previousDrainExecutor = sDrainExecutor.get();
+        sDrainExecutor.set(mExecutor);
+        try {
+            drain();
+        } finally {
+            sDrainExecutor.set(previousDrainExecutor);
+            // A drain scheduled when this one finished may already have started on another thread
+            mDrainThread.compareAndSet(currentThread, null);
+        }
+    }
+
+    private void drain() {
+        int numRun = 0;
+        do {
+            if (numRun == mBatchSize) {
+                // The pending count is non zero so no producer schedules a drain meanwhile.
+                reschedule();
+                return;
+            }
+            Runnable task = mUrgentTasks.poll();
+            if (task == null) {
+                task = mTasks.poll();
+                if (task == null) {
+                    // Cleared
+                    return;
+                }
+                if (mFreeSlots != null && !payBackBorrowedSlot()) {
+                    mFreeSlots.release();
+                }
+            }
+            runTask(task);
+            numRun++;
+            if (mHandedOffTasks != null) {
+                numRun = runHandedOffTasks(numRun);
+            }
+        } while (mPendingCount.decrementAndGet() != 0);
+        wakeEmptyWaiters();
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            // A task that throws must not stop the drain or the mailbox would never be
+            // scheduled again.
+            Config.get().getLogger().e(TAG, "Error when running dispatch task", t);
+        }
+    }
+
+    /**
+     * Runs the tasks handed off by the task that just ran, and those that they hand off in turn.
+     *
+     * @return The number of tasks run in this drain so far.
+     */
+    private int runHandedOffTasks(int numRun) {
+        Runnable task;
+        while ((task = mHandedOffTasks.poll()) != null) {
+            if (numRun >= mBatchSize) {
+                // The pending count of the task that handed them off is still held, so
+                // enqueueing never schedules a drain.
+                do {
+                    enqueueOverCapacity(task);
+                } while ((task = mHandedOffTasks.poll()) != null);
+                break;
+            }
+            runTask(task);
+            numRun++;
+        }
+        return numRun;
+    }
+
+    private void reschedule() {
+        try {
+            mExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+            Config.get().getLogger().d(TAG, "Dropping pending tasks since the executor has been shut down");
+        }
+    }
+
+    /**
+     * A task posted with {@link #postExempt(Runnable)}, which the overflow policy must not drop.
+     */
+    private static final class ExemptTask implements Runnable {
+        private final Runnable mTask;
+
+        ExemptTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+}
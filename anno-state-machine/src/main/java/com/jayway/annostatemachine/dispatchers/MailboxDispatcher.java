@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base for dispatchers that give each state machine its own {@link Mailbox} on an executor. The
+ * mailbox keeps the signals of one state machine serial and in order while the executor threads
+ * are free to serve any state machine.
+ * <p>
+ * An executor that is shared with other state machines outlives the state machine, so shutting
+ * down only stops the mailbox. An executor that only serves this dispatcher is shut down with it.
+ */
+abstract class MailboxDispatcher extends SignalDispatcher {
+
+    private static final String TAG = MailboxDispatcher.class.getSimpleName();
+
+    private final Mailbox mMailbox;
+    // The executor that only serves this dispatcher, null if the executor is shared
+    private final ExecutorService mOwnExecutor;
+    // Weak references handed to every queued signal, kept so that they are not created per signal
+    private final WeakReference<ExecutorService> mOwnExecutorRef;
+    private volatile WeakReference<DispatchCallback> mCallbackRef;
+    private final Conflation mConflation = new Conflation();
+    private final AtomicBoolean mIsShutDown = new AtomicBoolean();
+    // Set when shutting down gracefully, stops new signals while the queued ones are dispatched
+    private volatile boolean mIsClosed;
+    private final AtomicLong mExpiredCount = new AtomicLong();
+
+    /**
+     * @param executor An executor shared with other state machines.
+     */
+    MailboxDispatcher(Executor executor, int drainBatchSize, int capacity, OverflowPolicy overflowPolicy) {
+        this(executor, null, drainBatchSize, capacity, overflowPolicy, false);
+    }
+
+    /**
+     * @param ownExecutor An executor that only serves this dispatcher. It is shut down with the
+     *                    dispatcher, or when the state machine has been garbage collected.
+     * @param handOff     If true, tasks posted from the dispatcher thread are run right after the
+     *                    current one, see {@link Mailbox}.
+     */
+    MailboxDispatcher(ExecutorService ownExecutor, int drainBatchSize, int capacity, OverflowPolicy overflowPolicy,
+                      boolean handOff) {
+        this(ownExecutor, ownExecutor, drainBatchSize, capacity, overflowPolicy, handOff);
+    }
+
+    private MailboxDispatcher(Executor executor, ExecutorService ownExecutor, int drainBatchSize, int capacity,
+                              OverflowPolicy overflowPolicy, boolean handOff) {
+        super();
+        mMailbox = new Mailbox(executor, drainBatchSize, capacity, overflowPolicy, handOff);
+        mOwnExecutor = ownExecutor;
+        mOwnExecutorRef = ownExecutor != null ? new WeakReference<>(ownExecutor) : null;
+    }
+
+    @Override
+    public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        tryDispatch(signal, payload, callback, logger);
+    }
+
+    @Override
+    public boolean tryDispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        if (mIsShutDown.get() || mIsClosed) {
+            logger.d(TAG, "Not dispatching signal " + signal + " since dispatcher has been shut down");
+            return false;
+        }
+        return post(newDispatchRunnable(callback, signal, payload, null, logger), logger);
+    }
+
+    @Override
+    public boolean tryDispatchConflated(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        if (mIsShutDown.get() || mIsClosed) {
+            logger.d(TAG, "Not dispatching signal " + signal + " since dispatcher has been shut down");
+            return false;
+        }
+        if (mConflation.replacePending(callback, signal, payload)) {
+            return true;
+        }
+        Conflation.Entry entry = mConflation.register(callback, signal, payload);
+        if (post(newDispatchRunnable(callback, signal, null, entry, logger), logger)) {
+            return true;
+        }
+        mConflation.unregister(entry);
+        return false;
+    }
+
+    @Override
+    public boolean tryDispatchUrgent(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        if (mIsShutDown.get() || mIsClosed) {
+            logger.d(TAG, "Not dispatching signal " + signal + " since dispatcher has been shut down");
+            return false;
+        }
+        return postUrgent(newDispatchRunnable(callback, signal, payload, null, logger), logger);
+    }
+
+    private DispatchRunnable newDispatchRunnable(DispatchCallback callback, Enum signal, SignalPayload payload,
+                                                 Conflation.Entry conflationEntry, StateMachineLogger logger) {
+        return new DispatchRunnable(callbackRef(callback), mOwnExecutorRef, mIsShutDown, mExpiredCount, signal,
+                payload, conflationEntry, logger);
+    }
+
+    /**
+     * @return A weak reference to the callback. The reference is reused for as long as the same
+     * callback sends signals, which for a dispatcher that serves one state machine is always.
+     */
+    private WeakReference<DispatchCallback> callbackRef(DispatchCallback callback) {
+        WeakReference<DispatchCallback> callbackRef = mCallbackRef;
+        if (callbackRef == null || callbackRef.get() != callback) {
+            callbackRef = new WeakReference<>(callback);
+            mCallbackRef = callbackRef;
+        }
+        return callbackRef;
+    }
+
+    @Override
+    public void runOnDispatchThread(Runnable runnable, StateMachineLogger logger) {
+        if (mIsShutDown.get()) {
+            logger.d(TAG, "Not running " + runnable + " since dispatcher has been shut down");
+            return;
+        }
+        // The state machine depends on these, like the switch to the starting state or the
+        // completion of a pending transition, so the overflow policy must not drop them
+        try {
+            mMailbox.postExempt(runnable);
+        } catch (RejectedExecutionException e) {
+            logRejected(runnable, e, logger);
+        }
+    }
+
+    private boolean post(Runnable runnable, StateMachineLogger logger) {
+        try {
+            if (mMailbox.post(runnable)) {
+                return true;
+            }
+            logger.d(TAG, "Queue full, not running " + runnable);
+        } catch (RejectedExecutionException e) {
+            logRejected(runnable, e, logger);
+        }
+        return false;
+    }
+
+    private boolean postUrgent(Runnable runnable, StateMachineLogger logger) {
+        try {
+            mMailbox.postUrgent(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logRejected(runnable, e, logger);
+        }
+        return false;
+    }
+
+    private void logRejected(Runnable runnable, RejectedExecutionException e, StateMachineLogger logger) {
+        if (mOwnExecutor != null) {
+            // The executor has been shut down after the shut down check, either by shutDown()
+            // or because the state machine was garbage collected.
+            logger.d(TAG, "Not running " + runnable + " since dispatcher has been shut down");
+        } else {
+            logger.e(TAG, "Executor rejected " + runnable, e);
+        }
+    }
+
+    /**
+     * @return The number of times a sender had to wait since the queue was full.
+     */
+    public long getBlockedCount() {
+        return mMailbox.getBlockedCount();
+    }
+
+    /**
+     * @return The number of signals that were rejected since the queue was full.
+     */
+    public long getRejectedCount() {
+        return mMailbox.getRejectedCount();
+    }
+
+    /**
+     * @return The number of signals that were dropped since the queue was full.
+     */
+    public long getDroppedCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    /**
+     * @return The number of signals that were dropped since their time to live ran out while
+     * they were waiting in the queue.
+     */
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    @Override
+    public void shutDown() {
+        mIsShutDown.set(true);
+        if (mOwnExecutor != null) {
+            mOwnExecutor.shutdownNow();
+        }
+        mMailbox.clear();
+        mConflation.clear();
+    }
+
+    /**
+     * Stops accepting signals and waits for the queued signals to be dispatched. Runnables posted
+     * to the dispatch thread are still run while waiting. An executor of its own is then shut
+     * down, while a shared one is not, so a signal that is being dispatched on a shared executor
+     * when the time runs out may still finish afterwards.
+     */
+    @Override
+    public int shutDownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mIsClosed = true;
+        mMailbox.awaitEmpty(timeout, unit);
+        mIsShutDown.set(true);
+        int discardedCount = mMailbox.clear();
+        mConflation.clear();
+        if (mOwnExecutor != null) {
+            mOwnExecutor.shutdownNow();
+            mOwnExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return discardedCount;
+    }
+
+    /**
+     * Dispatches the following signals on another executor, see {@link Mailbox#moveTo(Executor)}.
+     */
+    void moveTo(Executor executor) {
+        mMailbox.moveTo(executor);
+    }
+
+    /**
+     * @return The executor that only serves this dispatcher, or null if it is shared.
+     */
+    ExecutorService getOwnExecutor() {
+        return mOwnExecutor;
+    }
+
+    boolean isShutDown() {
+        return mIsShutDown.get();
+    }
+
+    private static class DispatchRunnable implements Mailbox.DroppableTask {
+
+        private static final boolean GC_WINDOW_ENABLED = false;
+        private final WeakReference<DispatchCallback> mCallbackRef;
+        // Null if the executor is shared
+        private final WeakReference<ExecutorService> mOwnExecutorRef;
+        private final AtomicBoolean mIsShutDown;
+        private final AtomicLong mExpiredCount;
+        private final Enum mSignal;
+        private final SignalPayload mPayload;
+        // Holds the latest payload instead of mPayload for conflated signals
+        private final Conflation.Entry mConflationEntry;
+        private final StateMachineLogger mLogger;
+
+        DispatchRunnable(WeakReference<DispatchCallback> callbackRef, WeakReference<ExecutorService> ownExecutorRef,
+                         AtomicBoolean isShutDown, AtomicLong expiredCount, Enum signal, SignalPayload payload,
+                         Conflation.Entry conflationEntry, StateMachineLogger logger) {
+            mCallbackRef = callbackRef;
+            mOwnExecutorRef = ownExecutorRef;
+            mIsShutDown = isShutDown;
+            mExpiredCount = expiredCount;
+            mSignal = signal;
+            mPayload = payload;
+            mConflationEntry = conflationEntry;
+            mLogger = logger;
+        }
+
+        @Override
+        public void run() {
+            // The WeakReference to the callback will rarely be garbage collected until all queued
+            // tasks are finished due to the lack of a window for garbage collection here. The next
+            // task will be run directly leading to a local hard reference to the
+            // DispatchCallback(state machine) which prevents the state machine and this dispatcher
+            // from being garbage collected.
+            if (GC_WINDOW_ENABLED) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            SignalPayload payload = mConflationEntry != null ? mConflationEntry.take() : mPayload;
+            if (mIsShutDown.get()) {
+                mLogger.d(TAG, "Not dispatching signal " + mSignal + " since dispatcher has been shut down");
+                return;
+            }
+            if (payload != null && payload.isExpired()) {
+                mExpiredCount.incrementAndGet();
+                mLogger.d(TAG, "Not dispatching signal " + mSignal + " since its time to live has run out");
+                return;
+            }
+            DispatchCallback callback = mCallbackRef.get();
+            if (callback != null) {
+                callback.dispatchBlocking(mSignal, payload);
+                return;
+            }
+            ExecutorService ownExecutor = mOwnExecutorRef != null ? mOwnExecutorRef.get() : null;
+            if (ownExecutor != null) {
+                mLogger.d(TAG, "Shutting down executor since callback has been garbage collected");
+                ownExecutor.shutdownNow();
+            } else {
+                mLogger.d(TAG, "Not dispatching signal " + mSignal + " since the state machine has been garbage collected");
+            }
+        }
+
+        @Override
+        public void onDropped() {
+            if (mConflationEntry != null) {
+                mConflationEntry.discard();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+/**
+ * What a dispatcher with a bounded queue does with a signal that is sent when the queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * The sending thread waits until there is room in the queue. A signal sent from the dispatch
+     * thread itself, or from another dispatcher on the same single thread executor, is rejected
+     * instead since waiting there would never end.
+     */
+    BLOCK,
+
+    /**
+     * The signal is not queued and the sender is told so, see
+     * {@link com.jayway.annostatemachine.BoundedStateMachineFront#trySend(Object, com.jayway.annostatemachine.SignalPayload)}.
+     */
+    REJECT,
+
+    /**
+     * The signal that was just sent is silently dropped.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest queued signal, or runnable, is dropped to make room for the one just sent.
+     */
+    DROP_OLDEST
+}
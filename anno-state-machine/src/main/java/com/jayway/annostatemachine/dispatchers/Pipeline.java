@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.Config;
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed topology of state machine stages, each dispatched on a thread of its own, where the
+ * signals from one stage to the next go through a bounded {@link SpscQueue}.
+ * <p>
+ * The topology is declared with a {@link Builder} as stages and links between them, which must not
+ * form a cycle. Each stage is a dispatcher that a state machine is initialized with. When a
+ * connection of a state machine on one stage sends a signal to a state machine on a stage it is
+ * linked to, the signal goes into the queue of that link, which only the two stage threads use.
+ * A full link makes the sending stage wait, so a slow stage holds back the stages before it
+ * instead of letting its queue grow. All other signals, such as those sent into the first stage,
+ * go through an unbounded queue that any thread may use.
+ * <p>
+ * Each stage counts the signals it dispatches, the time it spends dispatching and how often a
+ * stage before it had to wait for room, which tells which stage holds the pipeline back, see
+ * {@link #getBusiestStage()}.
+ * <p>
+ * The stage threads are started by the first signal and run until the pipeline is shut down.
+ */
+public class Pipeline {
+
+    private final LinkedHashMap<String, Stage> mStages;
+
+    private Pipeline(LinkedHashMap<String, Stage> stages) {
+        mStages = stages;
+    }
+
+    /**
+     * @return The stage with the given name, to initialize the stage's state machine with.
+     * @throws IllegalArgumentException if there is no such stage.
+     */
+    public Stage getStage(String name) {
+        Stage stage = mStages.get(name);
+        if (stage == null) {
+            throw new IllegalArgumentException("No stage named " + name);
+        }
+        return stage;
+    }
+
+    public Collection<Stage> getStages() {
+        return Collections.unmodifiableCollection(mStages.values());
+    }
+
+    /**
+     * @return The stage that has spent the most time dispatching, which is the one that limits the
+     * throughput of the pipeline when it is under load.
+     */
+    public Stage getBusiestStage() {
+        Stage busiest = null;
+        for (Stage stage : mStages.values()) {
+            if (busiest == null || stage.getBusyNanos() > busiest.getBusyNanos()) {
+                busiest = stage;
+            }
+        }
+        return busiest;
+    }
+
+    /**
+     * Shuts down all stages. Signals that have not been dispatched are discarded.
+     */
+    public void shutDown() {
+        for (Stage stage : mStages.values()) {
+            stage.shutDown();
+        }
+    }
+
+    public static class Builder {
+
+        /**
+         * The default number of signals a link between two stages holds.
+         */
+        public static final int DEFAULT_LINK_CAPACITY = 1024;
+
+        private final LinkedHashMap<String, WaitStrategy> mStages = new LinkedHashMap<>();
+        private final ArrayList<String[]> mLinks = new ArrayList<>();
+        private int mLinkCapacity = DEFAULT_LINK_CAPACITY;
+        private int mDrainBatchSize = BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE;
+
+        /**
+         * Adds a stage whose thread parks while there is nothing to dispatch.
+         */
+        public Builder addStage(String name) {
+            return addStage(name, new BlockingWaitStrategy());
+        }
+
+        /**
+         * @param waitStrategy How the stage thread waits for signals. Each stage needs its own
+         *                     instance.
+         */
+        public Builder addStage(String name, WaitStrategy waitStrategy) {
+            if (mStages.containsKey(name)) {
+                throw new IllegalArgumentException("There already is a stage named " + name);
+            }
+            mStages.put(name, waitStrategy);
+            return this;
+        }
+
+        /**
+         * Lets the state machine on the first stage send signals to the state machine on the
+         * second stage through a queue of their own.
+         */
+        public Builder link(String from, String to) {
+            mLinks.add(new String[]{from, to});
+            return this;
+        }
+
+        /**
+         * @param linkCapacity The number of signals each link holds. Must be a power of two.
+         */
+        public Builder linkCapacity(int linkCapacity) {
+            mLinkCapacity = linkCapacity;
+            return this;
+        }
+
+        /**
+         * @param drainBatchSize The maximum number of signals a stage dispatches from one of its
+         *                       queues before it turns to the next.
+         */
+        public Builder drainBatchSize(int drainBatchSize) {
+            if (drainBatchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be at least 1, was " + drainBatchSize);
+            }
+            mDrainBatchSize = drainBatchSize;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if a link refers to an unknown stage, links a stage to
+         *                                  itself, is declared twice or the links form a cycle.
+         */
+        public Pipeline build() {
+            LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+            for (String name : mStages.keySet()) {
+                stages.put(name, new Stage(name, mStages.get(name), mDrainBatchSize));
+            }
+            for (String[] link : mLinks) {
+                Stage from = stages.get(link[0]);
+                Stage to = stages.get(link[1]);
+                if (from == null || to == null) {
+                    throw new IllegalArgumentException("Link " + link[0] + " -> " + link[1] + " refers to an unknown stage");
+                }
+                if (from == to) {
+                    throw new IllegalArgumentException("Stage " + from.mName + " can not be linked to itself");
+                }
+                for (Link inbound : to.mInbound) {
+                    if (inbound.mFrom == from) {
+                        throw new IllegalArgumentException("Link " + link[0] + " -> " + link[1] + " is declared twice");
+                    }
+                }
+                to.mInbound.add(new Link(from, new SpscQueue(mLinkCapacity)));
+            }
+            for (Stage stage : stages.values()) {
+                checkNoCycle(stage, new ArrayList<Stage>());
+            }
+            return new Pipeline(stages);
+        }
+
+        private static void checkNoCycle(Stage stage, ArrayList<Stage> downstream) {
+            if (downstream.contains(stage)) {
+                throw new IllegalArgumentException("Links form a cycle through stage " + stage.mName);
+            }
+            downstream.add(stage);
+            for (Link inbound : stage.mInbound) {
+                checkNoCycle(inbound.mFrom, downstream);
+            }
+            downstream.remove(downstream.size() - 1);
+        }
+    }
+
+    private static final class Link {
+        final Stage mFrom;
+        final SpscQueue mQueue;
+
+        Link(Stage from, SpscQueue queue) {
+            mFrom = from;
+            mQueue = queue;
+        }
+    }
+
+    private static final class Task {
+        final Enum mSignal;
+        final SignalPayload mPayload;
+        final DispatchCallback mCallback;
+        final Runnable mRunnable;
+
+        Task(Enum signal, SignalPayload payload, DispatchCallback callback, Runnable runnable) {
+            mSignal = signal;
+            mPayload = payload;
+            mCallback = callback;
+            mRunnable = runnable;
+        }
+    }
+
+    /**
+     * The dispatcher of one stage, see {@link Pipeline}.
+     */
+    public static final class Stage extends SignalDispatcher implements Runnable, WaitStrategy.Barrier {
+
+        private static final String TAG = Stage.class.getSimpleName();
+
+        private final String mName;
+        private final WaitStrategy mWaitStrategy;
+        private final int mDrainBatchSize;
+        // Only added to while the pipeline is built
+        private final ArrayList<Link> mInbound = new ArrayList<>();
+        private final ConcurrentLinkedQueue<Task> mExternal = new ConcurrentLinkedQueue<>();
+        private final Thread mThread;
+        private final AtomicBoolean mIsStarted = new AtomicBoolean();
+        private final AtomicBoolean mIsShutDown = new AtomicBoolean();
+
+        // Only written by the stage thread
+        private volatile long mDispatchedCount;
+        private volatile long mBusyNanos;
+        // Time spent waiting for room on a full link, not counted as busy
+        private long mBlockedNanos;
+
+        private final AtomicLong mBackPressureCount = new AtomicLong();
+        private final AtomicLong mExpiredCount = new AtomicLong();
+
+        private Stage(String name, WaitStrategy waitStrategy, int drainBatchSize) {
+            super();
+            mName = name;
+            mWaitStrategy = waitStrategy;
+            mDrainBatchSize = drainBatchSize;
+            mThread = new DispatcherThreads(Pipeline.class.getSimpleName() + "-" + name, Thread.NORM_PRIORITY)
+                    .newThread(this);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+            tryDispatch(signal, payload, callback, logger);
+        }
+
+        @Override
+        public boolean tryDispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+            if (callback == null) {
+                logger.e(TAG, "Ignoring signal dispatch, callback is null");
+                return false;
+            }
+            return enqueue(signal, payload, callback, null, logger);
+        }
+
+        @Override
+        public void runOnDispatchThread(Runnable runnable, StateMachineLogger logger) {
+            enqueue(null, null, null, runnable, logger);
+        }
+
+        private boolean enqueue(Enum signal, SignalPayload payload, DispatchCallback callback, Runnable runnable,
+                                StateMachineLogger logger) {
+            if (mIsShutDown.get()) {
+                logger.d(TAG, "Not dispatching on stage " + mName + " since it has been shut down");
+                return false;
+            }
+            if (!mIsStarted.get() && mIsStarted.compareAndSet(false, true)) {
+                mThread.start();
+            }
+            Link link = inboundFrom(Thread.currentThread());
+            if (link == null) {
+                mExternal.offer(new Task(signal, payload, callback, runnable));
+            } else if (!link.mQueue.offer(signal, payload, callback, runnable)) {
+                mBackPressureCount.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    do {
+                        if (mIsShutDown.get()) {
+                            logger.d(TAG, "Not dispatching on stage " + mName + " since it has been shut down");
+                            return false;
+                        }
+                        Thread.yield();
+                    } while (!link.mQueue.offer(signal, payload, callback, runnable));
+                } finally {
+                    link.mFrom.mBlockedNanos += System.nanoTime() - start;
+                }
+            }
+            mWaitStrategy.signalAll();
+            return true;
+        }
+
+        /**
+         * @return The link from the stage running on the given thread, or null.
+         */
+        private Link inboundFrom(Thread thread) {
+            for (int i = 0; i < mInbound.size(); i++) {
+                Link link = mInbound.get(i);
+                if (link.mFrom.mThread == thread) {
+                    return link;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            if (mIsShutDown.get() || !mExternal.isEmpty()) {
+                return true;
+            }
+            for (int i = 0; i < mInbound.size(); i++) {
+                if (!mInbound.get(i).mQueue.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            StateMachineLogger logger = Config.get().getLogger();
+            try {
+                while (!mIsShutDown.get()) {
+                    long start = System.nanoTime();
+                    long blockedNanos = mBlockedNanos;
+                    int dispatchedCount = 0;
+                    for (int i = 0; i < mInbound.size(); i++) {
+                        SpscQueue queue = mInbound.get(i).mQueue;
+                        for (int n = 0; n < mDrainBatchSize && queue.dispatchNext(mExpiredCount, logger); n++) {
+                            dispatchedCount++;
+                        }
+                    }
+                    Task task;
+                    for (int n = 0; n < mDrainBatchSize && (task = mExternal.poll()) != null; n++) {
+                        SpscQueue.dispatch(task.mSignal, task.mPayload, task.mCallback, task.mRunnable,
+                                mExpiredCount, logger);
+                        dispatchedCount++;
+                    }
+                    if (dispatchedCount > 0) {
+                        mDispatchedCount += dispatchedCount;
+                        mBusyNanos += System.nanoTime() - start - (mBlockedNanos - blockedNanos);
+                    } else {
+                        mWaitStrategy.waitFor(this);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.d(TAG, "Stage " + mName + " interrupted");
+            }
+            mIsShutDown.set(true);
+            mExternal.clear();
+        }
+
+        /**
+         * @return The number of signals and runnables this stage has dispatched.
+         */
+        public long getDispatchedCount() {
+            return mDispatchedCount;
+        }
+
+        /**
+         * @return The total time this stage has spent dispatching, not counting the time it waited
+         * for room on a full link to the next stage.
+         */
+        public long getBusyNanos() {
+            return mBusyNanos;
+        }
+
+        /**
+         * @return The number of times a stage linked to this one had to wait since the link was
+         * full.
+         */
+        public long getBackPressureCount() {
+            return mBackPressureCount.get();
+        }
+
+        /**
+         * @return The number of signals waiting to be dispatched.
+         */
+        public int getQueuedCount() {
+            int queuedCount = mExternal.size();
+            for (int i = 0; i < mInbound.size(); i++) {
+                queuedCount += mInbound.get(i).mQueue.size();
+            }
+            return queuedCount;
+        }
+
+        /**
+         * @return The number of signals that were dropped since their time to live ran out while
+         * they were waiting.
+         */
+        public long getExpiredCount() {
+            return mExpiredCount.get();
+        }
+
+        @Override
+        public void shutDown() {
+            mIsShutDown.set(true);
+            mWaitStrategy.signalAll();
+        }
+    }
+}
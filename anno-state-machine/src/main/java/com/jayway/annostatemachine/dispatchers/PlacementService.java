@@ -0,0 +1,433 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.Config;
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalDispatcherFactory;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Places state machines on a fixed number of dispatch threads and moves them between the threads
+ * at run time based on the signals they send each other.
+ * <p>
+ * State machines get a dispatcher from the service by passing it to init as a
+ * {@link SignalDispatcherFactory}. Each state machine has its own queue, which is dispatched on
+ * the thread it is currently placed on. The service counts the signals that a state machine sends
+ * to other state machines of the same service from its connections, and how many signals each of
+ * them dispatches. Each {@link #rebalance()} then puts state machines that exchange many signals
+ * on the same thread, so that the signals do not have to wake up another thread, and spreads
+ * groups of busy state machines that do not talk to each other over the threads.
+ * <p>
+ * Moving a state machine keeps its signals in order and never dispatches two of its signals at
+ * the same time. The signal being dispatched, if any, finishes on the old thread and the
+ * following ones are dispatched on the new thread.
+ */
+public class PlacementService implements SignalDispatcherFactory {
+
+    private static final String TAG = PlacementService.class.getSimpleName();
+
+    /**
+     * The default number of signals one state machine must have sent to another since the last
+     * rebalance for the two to be put on the same thread.
+     */
+    public static final long DEFAULT_MIN_AFFINITY_SIGNALS = 100;
+
+    // The state machine that is dispatching a signal on the current thread, if it is placed by
+    // any service.
+    private static final ThreadLocal<PlacedDispatcher> sDispatching = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor[] mExecutors;
+    private final int mDrainBatchSize;
+    private final int mSampleInterval;
+    private final long mMinAffinitySignals;
+
+    // The dispatchers that have not been shut down, held weakly in case their state machine is
+    // collected without being shut down.
+    private final Map<PlacedDispatcher, Boolean> mDispatchers = new WeakHashMap<>();
+    private final AtomicLong mMigrationCount = new AtomicLong();
+    private ScheduledExecutorService mRebalancer;
+
+    public PlacementService(int threadCount) {
+        this(threadCount, BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE, 1, DEFAULT_MIN_AFFINITY_SIGNALS);
+    }
+
+    /**
+     * @param threadCount        The number of dispatch threads.
+     * @param drainBatchSize     The maximum number of signals of one state machine to dispatch
+     *                           before the other state machines on the thread get their turn.
+     * @param sampleInterval     Only every this many signals sent between state machines is
+     *                           counted, which lowers the cost of sampling on busy state machines.
+     * @param minAffinitySignals The number of signals one state machine must have sent to another
+     *                           since the last rebalance for the two to be put on the same thread.
+     */
+    public PlacementService(int threadCount, int drainBatchSize, int sampleInterval, long minAffinitySignals) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, was " + threadCount);
+        }
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException("Sample interval must be at least 1, was " + sampleInterval);
+        }
+        mDrainBatchSize = drainBatchSize;
+        mSampleInterval = sampleInterval;
+        mMinAffinitySignals = minAffinitySignals;
+        mExecutors = new ThreadPoolExecutor[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mExecutors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new DispatcherThreads(TAG + "-" + i, Thread.NORM_PRIORITY));
+        }
+    }
+
+    /**
+     * Creates a dispatcher on the thread with the fewest state machines.
+     */
+    @Override
+    public synchronized SignalDispatcher create() {
+        int[] machineCounts = new int[mExecutors.length];
+        for (PlacedDispatcher dispatcher : mDispatchers.keySet()) {
+            machineCounts[dispatcher.mThreadIndex]++;
+        }
+        int threadIndex = 0;
+        for (int i = 1; i < machineCounts.length; i++) {
+            if (machineCounts[i] < machineCounts[threadIndex]) {
+                threadIndex = i;
+            }
+        }
+        PlacedDispatcher dispatcher = new PlacedDispatcher(this, threadIndex);
+        mDispatchers.put(dispatcher, Boolean.TRUE);
+        return dispatcher;
+    }
+
+    /**
+     * Rebalances every period until the service is shut down.
+     */
+    public synchronized void startRebalancing(long period, TimeUnit unit) {
+        if (mRebalancer != null) {
+            return;
+        }
+        mRebalancer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-rebalancer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mRebalancer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (RuntimeException e) {
+                    Config.get().getLogger().e(TAG, "Error when rebalancing", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Moves state machines between the threads based on the signals counted since the last
+     * rebalance, and starts counting anew.
+     * <p>
+     * State machines that have sent each other enough signals form a group that is placed on a
+     * single thread. The groups are then placed from the busiest down, each on the thread that
+     * already dispatches most of its signals unless that would give the thread more than its share
+     * of the signals, in which case the group goes to the thread with the fewest signals so far.
+     * Groups that have not dispatched anything stay where they are.
+     *
+     * @return The number of state machines that were moved.
+     */
+    public synchronized int rebalance() {
+        List<PlacedDispatcher> dispatchers = new ArrayList<>(mDispatchers.keySet());
+        IdentityHashMap<PlacedDispatcher, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < dispatchers.size(); i++) {
+            indices.put(dispatchers.get(i), i);
+        }
+
+        int[] parents = new int[dispatchers.size()];
+        long[] loads = new long[dispatchers.size()];
+        for (int i = 0; i < dispatchers.size(); i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < dispatchers.size(); i++) {
+            PlacedDispatcher dispatcher = dispatchers.get(i);
+            loads[i] = dispatcher.takeDispatchedCount();
+            for (Map.Entry<PlacedDispatcher, long[]> entry : dispatcher.takeSentCounts().entrySet()) {
+                Integer receiverIndex = indices.get(entry.getKey());
+                if (receiverIndex != null && entry.getValue()[0] * mSampleInterval >= mMinAffinitySignals) {
+                    union(parents, i, receiverIndex);
+                }
+            }
+        }
+
+        HashMap<Integer, Group> groupsByRoot = new HashMap<>();
+        long totalLoad = 0;
+        for (int i = 0; i < dispatchers.size(); i++) {
+            int root = find(parents, i);
+            Group group = groupsByRoot.get(root);
+            if (group == null) {
+                group = new Group(mExecutors.length);
+                groupsByRoot.put(root, group);
+            }
+            PlacedDispatcher dispatcher = dispatchers.get(i);
+            group.mMembers.add(dispatcher);
+            group.mLoad += loads[i];
+            group.mLoadPerThread[dispatcher.mThreadIndex] += loads[i];
+            totalLoad += loads[i];
+        }
+        ArrayList<Group> groups = new ArrayList<>(groupsByRoot.values());
+        Collections.sort(groups, new Comparator<Group>() {
+            @Override
+            public int compare(Group group1, Group group2) {
+                return group1.mLoad < group2.mLoad ? 1 : group1.mLoad == group2.mLoad ? 0 : -1;
+            }
+        });
+
+        long share = (totalLoad + mExecutors.length - 1) / mExecutors.length;
+        long[] threadLoads = new long[mExecutors.length];
+        int movedCount = 0;
+        for (Group group : groups) {
+            if (group.mLoad == 0) {
+                continue;
+            }
+            int home = 0;
+            int leastLoaded = 0;
+            for (int i = 1; i < mExecutors.length; i++) {
+                if (group.mLoadPerThread[i] > group.mLoadPerThread[home]) {
+                    home = i;
+                }
+                if (threadLoads[i] < threadLoads[leastLoaded]) {
+                    leastLoaded = i;
+                }
+            }
+            int threadIndex = threadLoads[home] + group.mLoad <= Math.max(share, group.mLoad) ? home : leastLoaded;
+            threadLoads[threadIndex] += group.mLoad;
+            for (PlacedDispatcher dispatcher : group.mMembers) {
+                if (dispatcher.mThreadIndex != threadIndex) {
+                    moveTo(dispatcher, threadIndex);
+                    movedCount++;
+                }
+            }
+        }
+        return movedCount;
+    }
+
+    void moveTo(PlacedDispatcher dispatcher, int threadIndex) {
+        dispatcher.mThreadIndex = threadIndex;
+        dispatcher.moveTo(mExecutors[threadIndex]);
+        mMigrationCount.incrementAndGet();
+    }
+
+    private static int find(int[] parents, int index) {
+        while (parents[index] != index) {
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+
+    private static void union(int[] parents, int index1, int index2) {
+        parents[find(parents, index1)] = find(parents, index2);
+    }
+
+    /**
+     * @return The number of times a state machine has been moved to another thread.
+     */
+    public long getMigrationCount() {
+        return mMigrationCount.get();
+    }
+
+    /**
+     * Stops rebalancing and the dispatch threads. Signals that have not been dispatched are
+     * discarded.
+     */
+    public synchronized void shutDown() {
+        if (mRebalancer != null) {
+            mRebalancer.shutdownNow();
+        }
+        for (PlacedDispatcher dispatcher : new ArrayList<>(mDispatchers.keySet())) {
+            dispatcher.shutDown();
+        }
+        for (ThreadPoolExecutor executor : mExecutors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized void remove(PlacedDispatcher dispatcher) {
+        mDispatchers.remove(dispatcher);
+    }
+
+    private static class Group {
+        final ArrayList<PlacedDispatcher> mMembers = new ArrayList<>();
+        final long[] mLoadPerThread;
+        long mLoad;
+
+        Group(int threadCount) {
+            mLoadPerThread = new long[threadCount];
+        }
+    }
+
+    /**
+     * The dispatcher of a state machine placed by the service. Counts the signals it dispatches
+     * and the signals its connections send to other placed state machines.
+     */
+    static final class PlacedDispatcher extends MailboxDispatcher {
+
+        private final PlacementService mService;
+        volatile int mThreadIndex;
+
+        // Passed on instead of the state machine's callback so that the dispatching state
+        // machine is known when a connection sends a signal
+        private volatile TrackingCallback mTrackingCallback;
+
+        // Only changed by the thread the state machine is dispatched on
+        private volatile long mDispatchedCount;
+        private long mDispatchedCountAtRebalance;
+        private int mSendCount;
+        private final HashMap<PlacedDispatcher, long[]> mSentCounts = new HashMap<>();
+
+        PlacedDispatcher(PlacementService service, int threadIndex) {
+            super(service.mExecutors[threadIndex], service.mDrainBatchSize, Mailbox.UNBOUNDED, OverflowPolicy.BLOCK);
+            mService = service;
+            mThreadIndex = threadIndex;
+        }
+
+        @Override
+        public boolean tryDispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+            countSent();
+            return super.tryDispatch(signal, payload, tracking(callback), logger);
+        }
+
+        @Override
+        public boolean tryDispatchConflated(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+            countSent();
+            return super.tryDispatchConflated(signal, payload, tracking(callback), logger);
+        }
+
+        @Override
+        public boolean tryDispatchUrgent(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+            countSent();
+            return super.tryDispatchUrgent(signal, payload, tracking(callback), logger);
+        }
+
+        private TrackingCallback tracking(DispatchCallback callback) {
+            TrackingCallback trackingCallback = mTrackingCallback;
+            if (trackingCallback == null || trackingCallback.mCallback != callback) {
+                trackingCallback = new TrackingCallback(this, callback);
+                mTrackingCallback = trackingCallback;
+            }
+            return trackingCallback;
+        }
+
+        /**
+         * Counts a signal sent to this state machine if it comes from a connection of another
+         * state machine of the same service.
+         */
+        private void countSent() {
+            PlacedDispatcher sender = sDispatching.get();
+            if (sender == null || sender == this || sender.mService != mService) {
+                return;
+            }
+            if (++sender.mSendCount % mService.mSampleInterval != 0) {
+                return;
+            }
+            synchronized (sender.mSentCounts) {
+                long[] count = sender.mSentCounts.get(this);
+                if (count == null) {
+                    count = new long[1];
+                    sender.mSentCounts.put(this, count);
+                }
+                count[0]++;
+            }
+        }
+
+        /**
+         * @return The sampled number of signals sent to each state machine since the last call.
+         */
+        Map<PlacedDispatcher, long[]> takeSentCounts() {
+            synchronized (mSentCounts) {
+                HashMap<PlacedDispatcher, long[]> sentCounts = new HashMap<>(mSentCounts);
+                mSentCounts.clear();
+                return sentCounts;
+            }
+        }
+
+        /**
+         * @return The number of signals dispatched since the last call.
+         */
+        long takeDispatchedCount() {
+            long dispatchedCount = mDispatchedCount;
+            long count = dispatchedCount - mDispatchedCountAtRebalance;
+            mDispatchedCountAtRebalance = dispatchedCount;
+            return count;
+        }
+
+        @Override
+        public void shutDown() {
+            super.shutDown();
+            mService.remove(this);
+        }
+
+        @Override
+        public int shutDownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+            int discardedCount = super.shutDownGracefully(timeout, unit);
+            mService.remove(this);
+            return discardedCount;
+        }
+    }
+
+    private static final class TrackingCallback implements DispatchCallback {
+
+        private final PlacedDispatcher mDispatcher;
+        final DispatchCallback mCallback;
+
+        TrackingCallback(PlacedDispatcher dispatcher, DispatchCallback callback) {
+            mDispatcher = dispatcher;
+            mCallback = callback;
+        }
+
+        @Override
+        public void dispatchBlocking(Enum signal, SignalPayload payload) {
+            PlacedDispatcher previous = sDispatching.get();
+            sDispatching.set(mDispatcher);
+            try {
+                mDispatcher.mDispatchedCount++;
+                mCallback.dispatchBlocking(signal, payload);
+            } finally {
+                sDispatching.set(previous);
+            }
+        }
+    }
+}
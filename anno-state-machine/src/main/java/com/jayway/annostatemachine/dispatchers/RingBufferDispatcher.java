@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.Config;
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dispatches signals on a dedicated background thread through a pre-allocated ring buffer.
+ * Sending a signal claims the next slot in the ring and fills it in, so in the steady state no
+ * objects are allocated per signal. How the dispatch thread waits for signals is decided by
+ * the {@link WaitStrategy}.
+ * <p>
+ * If the ring is full the sending thread waits until the dispatch thread has made room. A signal
+ * sent from a connection, i.e. on the dispatch thread, when the ring is full is dropped since
+ * waiting would dead lock.
+ * <p>
+ * The dispatch thread is started by the first signal or runnable, so a state machine that never
+ * receives a signal does not cost a thread. It stops when the dispatcher is shut down or when the
+ * state machine that sends signals through it has been garbage collected.
+ */
+public class RingBufferDispatcher extends SignalDispatcher {
+
+    private static final String TAG = RingBufferDispatcher.class.getSimpleName();
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private final Ring mRing;
+    private final Thread mThread;
+    // Claimed by whoever starts the thread, or by a graceful shut down that finds it not started
+    private final AtomicBoolean mIsStarted = new AtomicBoolean();
+    // Set when shutting down gracefully, stops new signals while the published ones are dispatched
+    private volatile boolean mIsClosed;
+
+    public RingBufferDispatcher() {
+        this(DEFAULT_BUFFER_SIZE, new BlockingWaitStrategy());
+    }
+
+    /**
+     * @param bufferSize   The number of slots in the ring. Must be a power of two.
+     * @param waitStrategy How the dispatch thread waits for signals.
+     */
+    public RingBufferDispatcher(int bufferSize, WaitStrategy waitStrategy) {
+        this(bufferSize, waitStrategy, TAG + "-" + sThreadCount.incrementAndGet(), Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param bufferSize     See {@link #RingBufferDispatcher(int, WaitStrategy)}.
+     * @param waitStrategy   See {@link #RingBufferDispatcher(int, WaitStrategy)}.
+     * @param threadName     The name passed to the
+     *                       {@link com.jayway.annostatemachine.DispatcherThreadFactory}.
+     * @param threadPriority The priority passed to the factory.
+     */
+    public RingBufferDispatcher(int bufferSize, WaitStrategy waitStrategy, String threadName, int threadPriority) {
+        super();
+        if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("Buffer size must be a power of two, was " + bufferSize);
+        }
+        mRing = new Ring(bufferSize, waitStrategy);
+        mThread = new DispatcherThreads(threadName, threadPriority).newThread(mRing);
+        mRing.mThread = mThread;
+    }
+
+    private void startIfNeeded() {
+        if (!mIsStarted.get() && mIsStarted.compareAndSet(false, true)) {
+            mThread.start();
+        }
+    }
+
+    @Override
+    public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        tryDispatch(signal, payload, callback, logger);
+    }
+
+    @Override
+    public boolean tryDispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        if (mIsClosed) {
+            logger.d(TAG, "Not dispatching signal " + signal + " since dispatcher has been shut down");
+            return false;
+        }
+        startIfNeeded();
+        if (mRing.publish(signal, payload, callback, null, logger)) {
+            return true;
+        }
+        if (mRing.mIsShutDown.get()) {
+            logger.d(TAG, "Not dispatching signal " + signal + " since dispatcher has been shut down");
+        }
+        return false;
+    }
+
+    @Override
+    public void runOnDispatchThread(Runnable runnable, StateMachineLogger logger) {
+        startIfNeeded();
+        if (!mRing.publish(null, null, null, runnable, logger) && mRing.mIsShutDown.get()) {
+            logger.d(TAG, "Not running " + runnable + " since dispatcher has been shut down");
+        }
+    }
+
+    @Override
+    public void shutDown() {
+        mRing.mIsShutDown.set(true);
+        mRing.mWaitStrategy.signalAll();
+    }
+
+    /**
+     * Stops accepting signals and waits until the dispatch thread has caught up with the signals
+     * already published before stopping it.
+     */
+    @Override
+    public int shutDownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        mIsClosed = true;
+        if (mIsStarted.compareAndSet(false, true)) {
+            // Nothing has been sent, and the thread can no longer be started by anyone else
+            shutDown();
+            return 0;
+        }
+        final CountDownLatch caughtUpLatch = new CountDownLatch(1);
+        // Runs after every signal published before it
+        boolean isMarkerPublished = mRing.publish(null, null, null, new Runnable() {
+            @Override
+            public void run() {
+                caughtUpLatch.countDown();
+            }
+        }, Config.get().getLogger());
+        int discardedCount = 0;
+        if (!isMarkerPublished || !caughtUpLatch.await(timeout, unit)) {
+            long pendingCount = mRing.mClaimed.get() - mRing.mConsumed.get() - (isMarkerPublished ? 1 : 0);
+            discardedCount = (int) Math.max(0, pendingCount);
+        }
+        shutDown();
+        return discardedCount;
+    }
+
+    boolean isShutDown() {
+        return mRing.mIsShutDown.get();
+    }
+
+    boolean isThreadStarted() {
+        return mThread.getState() != Thread.State.NEW;
+    }
+
+    /**
+     * @return The number of signals that were dropped since their time to live ran out while
+     * they were waiting in the ring.
+     */
+    public long getExpiredCount() {
+        return mRing.mExpiredCount.get();
+    }
+
+    private static final class Slot {
+        Enum signal;
+        SignalPayload payload;
+        DispatchCallback callback;
+        Runnable runnable;
+    }
+
+    /**
+     * The state shared by the sending threads and the dispatch thread. Kept apart from the
+     * dispatcher so that the dispatch thread does not keep the dispatcher reachable.
+     */
+    private static final class Ring implements Runnable, WaitStrategy.Barrier {
+
+        private final Slot[] mSlots;
+        private final int mMask;
+        // The sequence number last published in each slot, a slot may be read when it holds
+        // the sequence number the dispatch thread is waiting for.
+        private final AtomicLongArray mPublished;
+        // The next sequence number to hand out to a sending thread.
+        private final AtomicLong mClaimed = new AtomicLong();
+        // All sequence numbers below this have been read by the dispatch thread.
+        private final AtomicLong mConsumed = new AtomicLong();
+        private final WaitStrategy mWaitStrategy;
+        private final AtomicBoolean mIsShutDown = new AtomicBoolean();
+        private final AtomicLong mExpiredCount = new AtomicLong();
+
+        // The callback is the same for every signal from a state machine so the reference is
+        // only replaced for the first signal.
+        private volatile WeakReference<DispatchCallback> mOwnerRef;
+        private volatile Thread mThread;
+
+        // Only accessed on the dispatch thread
+        private long mNextSequence;
+
+        Ring(int bufferSize, WaitStrategy waitStrategy) {
+            mSlots = new Slot[bufferSize];
+            mPublished = new AtomicLongArray(bufferSize);
+            for (int i = 0; i < bufferSize; i++) {
+                mSlots[i] = new Slot();
+                mPublished.set(i, -1);
+            }
+            mMask = bufferSize - 1;
+            mWaitStrategy = waitStrategy;
+        }
+
+        /**
+         * @return false if the dispatcher has been shut down or the ring was full.
+         */
+        boolean publish(Enum signal, SignalPayload payload, DispatchCallback callback, Runnable runnable,
+                        StateMachineLogger logger) {
+            long sequence;
+            while (true) {
+                if (mIsShutDown.get()) {
+                    return false;
+                }
+                sequence = mClaimed.get();
+                if (sequence - mConsumed.get() >= mSlots.length) {
+                    if (Thread.currentThread() == mThread) {
+                        logger.e(TAG, "Ring buffer full, dropping " + (signal != null ? signal : runnable)
+                                + " sent on the dispatch thread");
+                        return false;
+                    }
+                    Thread.yield();
+                } else if (mClaimed.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            }
+
+            if (callback != null) {
+                WeakReference<DispatchCallback> ownerRef = mOwnerRef;
+                if (ownerRef == null || ownerRef.get() != callback) {
+                    mOwnerRef = new WeakReference<>(callback);
+                }
+            }
+
+            int index = (int) sequence & mMask;
+            Slot slot = mSlots[index];
+            slot.signal = signal;
+            slot.payload = payload;
+            slot.callback = callback;
+            slot.runnable = runnable;
+            mPublished.set(index, sequence);
+            mWaitStrategy.signalAll();
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mPublished.get((int) mNextSequence & mMask) == mNextSequence
+                    || mIsShutDown.get() || isOwnerCollected();
+        }
+
+        private boolean isOwnerCollected() {
+            WeakReference<DispatchCallback> ownerRef = mOwnerRef;
+            return ownerRef != null && ownerRef.get() == null;
+        }
+
+        @Override
+        public void run() {
+            StateMachineLogger logger = Config.get().getLogger();
+            try {
+                while (!mIsShutDown.get()) {
+                    int index = (int) mNextSequence & mMask;
+                    if (mPublished.get(index) != mNextSequence) {
+                        if (isOwnerCollected()) {
+                            logger.d(TAG, "Stopping dispatch thread since callback has been garbage collected");
+                            break;
+                        }
+                        mWaitStrategy.waitFor(this);
+                        continue;
+                    }
+
+                    Slot slot = mSlots[index];
+                    Enum signal = slot.signal;
+                    SignalPayload payload = slot.payload;
+                    DispatchCallback callback = slot.callback;
+                    Runnable runnable = slot.runnable;
+                    slot.signal = null;
+                    slot.payload = null;
+                    slot.callback = null;
+                    slot.runnable = null;
+                    mNextSequence++;
+                    mConsumed.lazySet(mNextSequence);
+
+                    try {
+                        if (runnable != null) {
+                            runnable.run();
+                        } else if (payload != null && payload.isExpired()) {
+                            mExpiredCount.incrementAndGet();
+                            logger.d(TAG, "Not dispatching signal " + signal + " since its time to live has run out");
+                        } else {
+                            callback.dispatchBlocking(signal, payload);
+                        }
+                    } catch (Throwable t) {
+                        logger.e(TAG, "Error when running dispatch task", t);
+                    }
+                    // Release the local reference to the state machine before waiting
+                    callback = null;
+                }
+            } catch (InterruptedException e) {
+                logger.d(TAG, "Dispatch thread interrupted");
+            }
+            mIsShutDown.set(true);
+            for (Slot slot : mSlots) {
+                slot.signal = null;
+                slot.payload = null;
+                slot.callback = null;
+                slot.runnable = null;
+            }
+        }
+    }
+}
@@ -1,40 +1,195 @@
 package com.jayway.annostatemachine.dispatchers;
 
+import com.jayway.annostatemachine.Config;
 import com.jayway.annostatemachine.DispatchCallback;
 import com.jayway.annostatemachine.SignalDispatcher;
 import com.jayway.annostatemachine.SignalPayload;
 import com.jayway.annostatemachine.utils.StateMachineLogger;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/**
+ * Dispatches signals on a background thread that is shared by all dispatchers with the same id.
+ * <p>
+ * By default the signals of all state machines on the thread go through one FIFO queue, so a
+ * state machine that sends a lot of signals delays everyone else. A state machine that is given
+ * a number of signals per turn gets a queue of its own instead. The thread serves these queues
+ * in turn, dispatching at most the given number of signals from each before moving on. All state
+ * machines that use the common FIFO queue share a single turn.
+ * <p>
+ * A signal that a connection sends to a state machine in the common FIFO queue, including its
+ * own, is dispatched right after the signal being dispatched, before the signals waiting in the
+ * queue. Cooperating state machines on the same queue thus hand signals to each other without
+ * queueing them behind unrelated work.
+ * <p>
+ * A dispatcher that is garbage collected without being shut down gives up its place on the
+ * shared queue from a background reaper thread, see {@link #getReclaimedCount()}.
+ */
 public class SharedBackgroundQueueDispatcher extends SignalDispatcher {
 
     private static final String TAG = SharedBackgroundQueueDispatcher.class.getSimpleName();
-    
-    private final int mSharedId;
 
-    private BackgroundQueueDispatcher mBackgroundQueueDispatcher;
+    /**
+     * The number of signals per turn that puts the state machine in the common FIFO queue.
+     */
+    public static final int NO_FAIR_SHARE = 0;
+
+    private volatile BackgroundQueueDispatcher mBackgroundQueueDispatcher;
+
+    // The queue that signals are put in, either the shared dispatcher itself or the state
+    // machine's own queue on the shared thread. Null once shut down, so each call reads it once.
+    private volatile SignalDispatcher mQueue;
 
     private AtomicBoolean mIsShutDown = new AtomicBoolean(false);
 
+    // Gives up the place on the shared queue, either on shut down or once this dispatcher has
+    // been collected.
+    private final Reclaimer mReclaimer;
+
+    private static final ReferenceQueue<SharedBackgroundQueueDispatcher> sCollected = new ReferenceQueue<>();
+
+    // Keeps the reclaimers of live dispatchers reachable until they have been enqueued
+    private static final Set<Reclaimer> sReclaimers =
+            Collections.newSetFromMap(new ConcurrentHashMap<Reclaimer, Boolean>());
+
+    private static final AtomicLong sReclaimedCount = new AtomicLong();
+
+    private static Thread sReaperThread;
+
     public SharedBackgroundQueueDispatcher(int sharedId) {
+        this(sharedId, BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * The capacity and overflow policy only take effect if this is the first dispatcher to use
+     * the queue with the given id. Later dispatchers share the queue as it was created.
+     */
+    public SharedBackgroundQueueDispatcher(int sharedId, int capacity, OverflowPolicy overflowPolicy) {
+        this(sharedId, capacity, overflowPolicy, NO_FAIR_SHARE);
+    }
+
+    /**
+     * @param sharedId       The id of the queue thread to share.
+     * @param capacity       See {@link #SharedBackgroundQueueDispatcher(int, int, OverflowPolicy)},
+     *                       or the capacity of the state machine's own queue if it gets turns.
+     * @param overflowPolicy What to do with signals sent when the queue is full.
+     * @param signalsPerTurn The maximum number of signals to dispatch in a row before the other
+     *                       queues on the thread get their turn, or {@link #NO_FAIR_SHARE}.
+     */
+    public SharedBackgroundQueueDispatcher(int sharedId, int capacity, OverflowPolicy overflowPolicy, int signalsPerTurn) {
+        this(sharedId, capacity, overflowPolicy, signalsPerTurn, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param sharedId       See {@link #SharedBackgroundQueueDispatcher(int, int, OverflowPolicy, int)}.
+     * @param capacity       See {@link #SharedBackgroundQueueDispatcher(int, int, OverflowPolicy, int)}.
+     * @param overflowPolicy See {@link #SharedBackgroundQueueDispatcher(int, int, OverflowPolicy, int)}.
+     * @param signalsPerTurn See {@link #SharedBackgroundQueueDispatcher(int, int, OverflowPolicy, int)}.
+     * @param threadPriority The priority of the shared thread. Like the capacity of the common
+     *                       queue it is decided by the first dispatcher to use the queue.
+     */
+    public SharedBackgroundQueueDispatcher(int sharedId, int capacity, OverflowPolicy overflowPolicy, int signalsPerTurn,
+                                           int threadPriority) {
         super();
-        mSharedId = sharedId;
-        mBackgroundQueueDispatcher = BackgroundQueuePool.getInstance().acquire(sharedId);
+        if (signalsPerTurn < 0) {
+            throw new IllegalArgumentException("Signals per turn must not be negative, was " + signalsPerTurn);
+        }
+        BackgroundQueuePool.Lease lease;
+        if (signalsPerTurn == NO_FAIR_SHARE) {
+            lease = BackgroundQueuePool.getInstance().acquire(sharedId, capacity, overflowPolicy, threadPriority);
+            mBackgroundQueueDispatcher = lease.getDispatcher();
+            mQueue = mBackgroundQueueDispatcher;
+        } else {
+            lease = BackgroundQueuePool.getInstance().acquire(sharedId,
+                    BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK, threadPriority);
+            mBackgroundQueueDispatcher = lease.getDispatcher();
+            mQueue = new FairShareDispatcher(mBackgroundQueueDispatcher.getExecutor(), signalsPerTurn,
+                    capacity, overflowPolicy);
+        }
+        mReclaimer = new Reclaimer(this, lease, mQueue != mBackgroundQueueDispatcher ? mQueue : null);
+        sReclaimers.add(mReclaimer);
+        startReaperIfNeeded();
+    }
+
+    /**
+     * @return The number of dispatchers that were garbage collected without being shut down and
+     * had their place on the shared queue given up by the reaper thread.
+     */
+    public static long getReclaimedCount() {
+        return sReclaimedCount.get();
+    }
+
+    private static synchronized void startReaperIfNeeded() {
+        if (sReaperThread != null) {
+            return;
+        }
+        sReaperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Reference<? extends SharedBackgroundQueueDispatcher> collected;
+                    try {
+                        collected = sCollected.remove();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (((Reclaimer) collected).release()) {
+                        sReclaimedCount.incrementAndGet();
+                        Config.get().getLogger().d(TAG, "Reclaimed a shared queue dispatcher that was not shut down");
+                    }
+                }
+            }
+        }, TAG + "-reaper");
+        sReaperThread.setDaemon(true);
+        sReaperThread.start();
     }
 
     @Override
     public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
-        if (!mIsShutDown.get()) {
-            mBackgroundQueueDispatcher.dispatch(signal, payload, callback, logger);
+        SignalDispatcher queue = mQueue;
+        if (!mIsShutDown.get() && queue != null) {
+            queue.dispatch(signal, payload, callback, logger);
         }
     }
 
+    @Override
+    public boolean tryDispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        SignalDispatcher queue = mQueue;
+        return !mIsShutDown.get() && queue != null && queue.tryDispatch(signal, payload, callback, logger);
+    }
+
+    @Override
+    public boolean tryDispatchConflated(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        // Conflation is per callback so state machines sharing the queue never replace each
+        // other's signals.
+        SignalDispatcher queue = mQueue;
+        return !mIsShutDown.get() && queue != null && queue.tryDispatchConflated(signal, payload, callback, logger);
+    }
+
+    @Override
+    public boolean tryDispatchUrgent(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+        // In the common queue urgent signals of any state machine go before the normal signals
+        // of all of them, in an own queue only before those of this state machine.
+        SignalDispatcher queue = mQueue;
+        return !mIsShutDown.get() && queue != null && queue.tryDispatchUrgent(signal, payload, callback, logger);
+    }
+
     @Override
     public void runOnDispatchThread(Runnable runnable, StateMachineLogger logger) {
-        if (!mIsShutDown.get()) {
-            mBackgroundQueueDispatcher.runOnDispatchThread(runnable, logger);
+        SignalDispatcher queue = mQueue;
+        if (!mIsShutDown.get() && queue != null) {
+            queue.runOnDispatchThread(runnable, logger);
         } else {
             logger.d(TAG, "Not running " + runnable + " since dispatcher has been shut down");
         }
@@ -43,15 +198,85 @@ public class SharedBackgroundQueueDispatcher extends SignalDispatcher {
     @Override
     public void shutDown() {
         mIsShutDown.set(true);
+        mQueue = null;
         mBackgroundQueueDispatcher = null;
         // Relinquish shuts down the queue if possible
-
-        BackgroundQueuePool.getInstance().relinquish(mSharedId);
+        mReclaimer.release();
     }
 
+    /**
+     * Stops accepting signals and waits for the signals already sent through this dispatcher to
+     * be dispatched. Other dispatchers keep using the queue. Signals left in the common FIFO
+     * queue when the time runs out are not discarded unless this is the last dispatcher on the
+     * queue, and 0 is returned since they can not be told apart from those of other dispatchers.
+     */
     @Override
-    protected void finalize() throws Throwable {
+    public int shutDownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        SignalDispatcher queue = mQueue;
+        BackgroundQueueDispatcher backgroundQueueDispatcher = mBackgroundQueueDispatcher;
+        if (mIsShutDown.getAndSet(true) || queue == null) {
+            return 0;
+        }
+        int discardedCount = 0;
+        if (queue != backgroundQueueDispatcher) {
+            discardedCount = queue.shutDownGracefully(timeout, unit);
+        } else {
+            final CountDownLatch dispatchedLatch = new CountDownLatch(1);
+            // Runs after the signals sent through this dispatcher since the queue is FIFO
+            queue.runOnDispatchThread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchedLatch.countDown();
+                }
+            }, Config.get().getLogger());
+            dispatchedLatch.await(timeout, unit);
+        }
         shutDown();
-        super.finalize();
+        return discardedCount;
+    }
+
+    /**
+     * Holds what is needed to give up the place on the shared queue without referring to the
+     * dispatcher itself, so that the dispatcher can be collected.
+     */
+    private static final class Reclaimer extends PhantomReference<SharedBackgroundQueueDispatcher> {
+
+        private final BackgroundQueuePool.Lease mLease;
+        // The state machine's own queue, or null if it uses the common FIFO queue
+        private final SignalDispatcher mOwnQueue;
+        private final AtomicBoolean mIsReleased = new AtomicBoolean(false);
+
+        Reclaimer(SharedBackgroundQueueDispatcher dispatcher, BackgroundQueuePool.Lease lease, SignalDispatcher ownQueue) {
+            super(dispatcher, sCollected);
+            mLease = lease;
+            mOwnQueue = ownQueue;
+        }
+
+        /**
+         * @return false if the place on the queue had already been given up.
+         */
+        boolean release() {
+            if (!mIsReleased.compareAndSet(false, true)) {
+                return false;
+            }
+            sReclaimers.remove(this);
+            clear();
+            if (mOwnQueue != null) {
+                mOwnQueue.shutDown();
+            }
+            BackgroundQueuePool.getInstance().relinquish(mLease);
+            return true;
+        }
+    }
+
+    /**
+     * A state machine's own queue on the shared thread. A mailbox that has dispatched its batch
+     * goes to the back of the thread's queue, after the mailboxes of the other state machines.
+     */
+    private static final class FairShareDispatcher extends MailboxDispatcher {
+
+        FairShareDispatcher(Executor executor, int signalsPerTurn, int capacity, OverflowPolicy overflowPolicy) {
+            super(executor, signalsPerTurn, capacity, overflowPolicy);
+        }
     }
 }
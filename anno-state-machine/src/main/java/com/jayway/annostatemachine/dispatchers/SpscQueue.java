@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of signals with exactly one sending and one dispatching thread. The slots are
+ * allocated up front and neither side takes a lock or does a compare and set, each only writes its
+ * own position and reads the other's.
+ */
+final class SpscQueue {
+
+    private static final String TAG = SpscQueue.class.getSimpleName();
+
+    private final Enum[] mSignals;
+    private final SignalPayload[] mPayloads;
+    private final DispatchCallback[] mCallbacks;
+    private final Runnable[] mRunnables;
+    private final int mMask;
+
+    // The next position to write, only written by the sending thread
+    private final AtomicLong mTail = new AtomicLong();
+    // The next position to read, only written by the dispatching thread
+    private final AtomicLong mHead = new AtomicLong();
+    // The sending thread's last view of the head, saves reading it on every offer
+    private long mCachedHead;
+
+    /**
+     * @param capacity The number of slots. Must be a power of two.
+     */
+    SpscQueue(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two, was " + capacity);
+        }
+        mSignals = new Enum[capacity];
+        mPayloads = new SignalPayload[capacity];
+        mCallbacks = new DispatchCallback[capacity];
+        mRunnables = new Runnable[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Only to be called from the sending thread.
+     *
+     * @return false if the queue is full.
+     */
+    boolean offer(Enum signal, SignalPayload payload, DispatchCallback callback, Runnable runnable) {
+        long tail = mTail.get();
+        if (tail - mCachedHead > mMask) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead > mMask) {
+                return false;
+            }
+        }
+        int index = (int) tail & mMask;
+        mSignals[index] = signal;
+        mPayloads[index] = payload;
+        mCallbacks[index] = callback;
+        mRunnables[index] = runnable;
+        // Makes the slot visible to the dispatching thread after it has been filled in
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Dispatches the oldest signal. Only to be called from the dispatching thread.
+     *
+     * @return false if the queue was empty.
+     */
+    boolean dispatchNext(AtomicLong expiredCount, StateMachineLogger logger) {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return false;
+        }
+        int index = (int) head & mMask;
+        Enum signal = mSignals[index];
+        SignalPayload payload = mPayloads[index];
+        DispatchCallback callback = mCallbacks[index];
+        Runnable runnable = mRunnables[index];
+        mSignals[index] = null;
+        mPayloads[index] = null;
+        mCallbacks[index] = null;
+        mRunnables[index] = null;
+        mHead.lazySet(head + 1);
+        dispatch(signal, payload, callback, runnable, expiredCount, logger);
+        return true;
+    }
+
+    static void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, Runnable runnable,
+                         AtomicLong expiredCount, StateMachineLogger logger) {
+        try {
+            if (runnable != null) {
+                runnable.run();
+            } else if (payload != null && payload.isExpired()) {
+                expiredCount.incrementAndGet();
+                logger.d(TAG, "Not dispatching signal " + signal + " since its time to live has run out");
+            } else {
+                callback.dispatchBlocking(signal, payload);
+            }
+        } catch (Throwable t) {
+            logger.e(TAG, "Error when running dispatch task", t);
+        }
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.Config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches signals on virtual threads. Each state machine gets its own mailbox so its signals
+ * are still dispatched one at a time and in order, but no platform thread is tied to a state
+ * machine. Idle state machines therefore cost no threads at all and a connection that blocks
+ * only blocks a virtual thread.
+ * <p>
+ * Virtual threads require Java 21. On older runtimes, including Android, the mailboxes are served
+ * by a shared cached pool of daemon threads instead, which keeps the ordering guarantees but
+ * uses a platform thread per state machine that is busy dispatching.
+ */
+public class VirtualThreadDispatcher extends MailboxDispatcher {
+
+    public VirtualThreadDispatcher() {
+        this(BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE);
+    }
+
+    /**
+     * @param drainBatchSize The maximum number of signals to dispatch each time a virtual thread
+     *                       is started for the state machine.
+     */
+    public VirtualThreadDispatcher(int drainBatchSize) {
+        this(drainBatchSize, BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param drainBatchSize See {@link #VirtualThreadDispatcher(int)}.
+     * @param capacity       The maximum number of signals waiting to be dispatched, or
+     *                       {@link BackgroundQueueDispatcher#UNBOUNDED_CAPACITY}.
+     * @param overflowPolicy What to do with signals sent when the queue is full.
+     */
+    public VirtualThreadDispatcher(int drainBatchSize, int capacity, OverflowPolicy overflowPolicy) {
+        super(ExecutorHolder.EXECUTOR, drainBatchSize, capacity, overflowPolicy);
+    }
+
+    /**
+     * @return true if the dispatchers run on virtual threads, false if the runtime lacks virtual
+     * threads and the fallback thread pool is used.
+     */
+    public static boolean usesVirtualThreads() {
+        return ExecutorHolder.IS_VIRTUAL;
+    }
+
+    // Lazily creates the executor the first time a dispatcher is created.
+    private static class ExecutorHolder {
+        private static final String TAG = VirtualThreadDispatcher.class.getSimpleName();
+        static final Executor EXECUTOR;
+        static final boolean IS_VIRTUAL;
+
+        static {
+            Executor executor = createVirtualThreadExecutor();
+            IS_VIRTUAL = executor != null;
+            if (executor == null) {
+                Config.get().getLogger().w(TAG, "Virtual threads not available, using a cached thread pool");
+                executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+            }
+            EXECUTOR = executor;
+        }
+
+        private static Executor createVirtualThreadExecutor() {
+            try {
+                Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factoryMethod.invoke(null);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "VirtualThreadDispatcher-fallback-" + mThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+/**
+ * Decides how the dispatch thread of a {@link RingBufferDispatcher} waits for signals to be sent,
+ * trading CPU usage for hand-over latency. Implementations must have a public no argument
+ * constructor in order to be used from {@link com.jayway.annostatemachine.annotations.StateMachine#waitStrategy()}.
+ * Each dispatcher gets its own instance.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Called on the dispatch thread when there is nothing to dispatch. Must not return before
+     * the barrier is open, unless interrupted.
+     */
+    void waitFor(Barrier barrier) throws InterruptedException;
+
+    /**
+     * Called on the sending thread after each signal has been made available.
+     */
+    void signalAll();
+
+    /**
+     * Tells a waiting dispatch thread when to continue.
+     */
+    interface Barrier {
+        /**
+         * @return true if there is something for the dispatch thread to do.
+         */
+        boolean isOpen();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Dispatches signals on a work-stealing pool with one thread per available processor. Each
+ * state machine gets its own mailbox so its signals are dispatched one at a time and in order,
+ * while any number of state machines are spread over all cores. Unlike
+ * {@link SharedBackgroundQueueDispatcher} a busy state machine does not delay unrelated ones, and
+ * unlike {@link BackgroundQueueDispatcher} there is no thread per state machine.
+ * <p>
+ * Connections should not block for long since that takes a worker away from all other state
+ * machines. Use {@link VirtualThreadDispatcher} for state machines with blocking connections.
+ */
+public class WorkStealingDispatcher extends MailboxDispatcher {
+
+    public WorkStealingDispatcher() {
+        this(BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE);
+    }
+
+    /**
+     * @param drainBatchSize The maximum number of signals to dispatch before the worker moves on
+     *                       to other state machines.
+     */
+    public WorkStealingDispatcher(int drainBatchSize) {
+        this(drainBatchSize, BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param drainBatchSize See {@link #WorkStealingDispatcher(int)}.
+     * @param capacity       The maximum number of signals waiting to be dispatched, or
+     *                       {@link BackgroundQueueDispatcher#UNBOUNDED_CAPACITY}.
+     * @param overflowPolicy What to do with signals sent when the queue is full.
+     */
+    public WorkStealingDispatcher(int drainBatchSize, int capacity, OverflowPolicy overflowPolicy) {
+        super(PoolHolder.POOL, drainBatchSize, capacity, overflowPolicy);
+    }
+
+    // Lazily creates the pool the first time a dispatcher is created.
+    private static class PoolHolder {
+        // Async mode makes each worker process its local tasks in FIFO order, which suits event
+        // style tasks that are never joined.
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+/**
+ * Spins for a short while and then yields the dispatch thread between checks. Gives low latency
+ * while letting other threads run, but keeps the dispatch thread runnable while idle.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public void waitFor(Barrier barrier) throws InterruptedException {
+        int spinTries = SPIN_TRIES;
+        while (!barrier.isOpen()) {
+            if (spinTries > 0) {
+                spinTries--;
+            } else {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void signalAll() {
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.asyncconnections;
+
+import com.jayway.annostatemachine.StateMachineEventListener;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.OnEnter;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.asyncconnections.generated.CachedLookupMachineImpl;
+import com.jayway.annostatemachine.asyncconnections.generated.LookupMachineImpl;
+import com.jayway.annostatemachine.asyncconnections.generated.UploadMachineImpl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class AsyncConnectionTests {
+
+    private static final int QUEUE_ID = 20;
+
+    private final List<LookupMachineImpl> mMachines = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (LookupMachineImpl machine : mMachines) {
+            machine.shutDown();
+        }
+    }
+
+    @Test
+    public void testSignalsWaitForTransitionToComplete() throws InterruptedException {
+        LookupMachineImpl machine = newMachine(null);
+        machine.latch = new CountDownLatch(1);
+
+        machine.send(LookupMachine.Signal.Lookup);
+        machine.send(LookupMachine.Signal.Ping);
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList("lookup"), machine.events);
+
+        machine.lookup.complete(true);
+
+        assertTrue(machine.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("lookup", "allowed ping"), machine.events);
+    }
+
+    @Test
+    public void testNoTransitionWhenStageCompletesWithFalse() throws InterruptedException {
+        LookupMachineImpl machine = newMachine(null);
+        machine.latch = new CountDownLatch(1);
+
+        machine.send(LookupMachine.Signal.Lookup);
+        machine.send(LookupMachine.Signal.Ping);
+        machine.lookup.complete(false);
+
+        assertTrue(machine.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("lookup", "idle ping"), machine.events);
+    }
+
+    @Test
+    public void testNoTransitionWhenStageCompletesExceptionally() throws InterruptedException {
+        StateMachineEventListener eventListener = mock(StateMachineEventListener.class);
+        LookupMachineImpl machine = newMachine(eventListener);
+        machine.latch = new CountDownLatch(1);
+
+        machine.send(LookupMachine.Signal.Lookup);
+        machine.send(LookupMachine.Signal.Ping);
+        IllegalStateException error = new IllegalStateException("Cache unavailable");
+        machine.lookup.completeExceptionally(error);
+
+        assertTrue(machine.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("lookup", "idle ping"), machine.events);
+        verify(eventListener, timeout(1000)).onThrowable(any(Throwable.class));
+    }
+
+    @Test
+    public void testPendingTransitionDoesNotHoldBackSharedQueue() throws InterruptedException {
+        LookupMachineImpl pending = newMachine(null);
+        LookupMachineImpl other = newMachine(null);
+        other.latch = new CountDownLatch(1);
+
+        pending.send(LookupMachine.Signal.Lookup);
+        other.send(LookupMachine.Signal.Ping);
+
+        assertTrue(other.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("idle ping"), other.events);
+        assertEquals(Collections.singletonList("lookup"), pending.events);
+    }
+
+    @Test
+    public void testVoidStageTransitionsOnCallingThread() throws InterruptedException {
+        final UploadMachineImpl machine = new UploadMachineImpl();
+        machine.init(UploadMachine.State.Idle);
+
+        machine.send(UploadMachine.Signal.Upload);
+        machine.send(UploadMachine.Signal.Upload);
+        assertEquals(1, machine.uploadCount);
+
+        Thread completingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                machine.upload.complete(null);
+            }
+        });
+        completingThread.start();
+        completingThread.join();
+
+        assertEquals(UploadMachine.State.Done, machine.state);
+        assertEquals("Buffered signal is dispatched in the new state", 1, machine.uploadCount);
+    }
+
+    @Test
+    public void testCompletedStageTransitionsOnceDuringDispatch() {
+        CachedLookupMachineImpl machine = new CachedLookupMachineImpl();
+        machine.init(CachedLookupMachine.State.Idle);
+
+        machine.send(CachedLookupMachine.Signal.Lookup);
+        machine.send(CachedLookupMachine.Signal.Ping);
+
+        assertEquals(Arrays.asList("enter Local", "local ping"), machine.events);
+    }
+
+    private LookupMachineImpl newMachine(StateMachineEventListener eventListener) {
+        LookupMachineImpl machine = new LookupMachineImpl();
+        machine.init(LookupMachine.State.Idle, eventListener);
+        mMachines.add(machine);
+        return machine;
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE, queueId = QUEUE_ID)
+    public static class LookupMachine {
+
+        public final CompletableFuture<Boolean> lookup = new CompletableFuture<>();
+        public final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        public volatile CountDownLatch latch;
+
+        @Signals
+        public enum Signal {
+            Lookup, Ping
+        }
+
+        @States
+        public enum State {
+            Idle, Allowed
+        }
+
+        @Connection(from = "Idle", to = "Allowed", on = "Lookup")
+        public CompletionStage<Boolean> onLookup() {
+            events.add("lookup");
+            return lookup;
+        }
+
+        @Connection(from = "Idle", to = "*", on = "Ping")
+        public void onPingWhenIdle() {
+            events.add("idle ping");
+            latch.countDown();
+        }
+
+        @Connection(from = "Allowed", to = "*", on = "Ping")
+        public void onPingWhenAllowed() {
+            events.add("allowed ping");
+            latch.countDown();
+        }
+    }
+
+    @StateMachine
+    public static class CachedLookupMachine {
+
+        public final List<String> events = new ArrayList<>();
+
+        @Signals
+        public enum Signal {
+            Lookup, Ping
+        }
+
+        @States
+        public enum State {
+            Idle, Local, Global
+        }
+
+        @Connection(from = "Idle", to = "Local", on = "Lookup")
+        public CompletionStage<Boolean> onLookup() {
+            // A cache hit
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Connection(from = "*", to = "Global", on = "Lookup")
+        public boolean onGlobalLookup() {
+            return true;
+        }
+
+        @Connection(from = "Local", to = "*", on = "Ping")
+        public void onPingWhenLocal() {
+            events.add("local ping");
+        }
+
+        @OnEnter("Local")
+        public void onEnterLocal() {
+            events.add("enter Local");
+        }
+
+        @OnEnter("Global")
+        public void onEnterGlobal() {
+            events.add("enter Global");
+        }
+    }
+
+    @StateMachine
+    public static class UploadMachine {
+
+        public final CompletableFuture<Void> upload = new CompletableFuture<>();
+        public volatile int uploadCount;
+        public volatile State state;
+
+        @Signals
+        public enum Signal {
+            Upload
+        }
+
+        @States
+        public enum State {
+            Idle, Done
+        }
+
+        @Connection(from = "Idle", to = "Done", on = "Upload")
+        public CompletionStage<Void> onUpload() {
+            uploadCount++;
+            return upload;
+        }
+
+        @OnEnter("Done")
+        public void onDone() {
+            state = State.Done;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.connectionprioritytests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.StateMachineEventListener;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.connectionprioritytests.generated.TableMachineImpl;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static com.jayway.annostatemachine.connectionprioritytests.DispatchTableTests.TableMachine.KEY_SATISFY_GLOBAL_SPECIFIC;
+import static com.jayway.annostatemachine.connectionprioritytests.DispatchTableTests.TableMachine.KEY_SATISFY_LOCAL_ANY;
+import static com.jayway.annostatemachine.connectionprioritytests.DispatchTableTests.TableMachine.KEY_SATISFY_LOCAL_SPECIFIC;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Verifies that a state machine generated with a dispatch table evaluates connections in the
+ * same order as one generated without it, see {@link ConnectionPriorityTests}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DispatchTableTests {
+
+    @Mock
+    StateMachineEventListener mMockEventListener;
+
+    @Test
+    public void testPriorityOrderIfNoSatisfiedGuards() {
+        TableMachineImpl stateMachine = spy(new TableMachineImpl());
+        stateMachine.init(TableMachine.State.INITIAL_STATE, mMockEventListener);
+
+        stateMachine.send(TableMachine.Signal.START, new SignalPayload());
+
+        InOrder inOrder = Mockito.inOrder(stateMachine, mMockEventListener);
+        inOrder.verify(stateMachine).localSpecificSignalSpy(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).localAnySignalSpy(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).localSpecificSignalTransition(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).localAnySignalTransition(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).globalSpecificSignalSpy(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).globalAnySignalSpy(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).globalSpecificSignalTransition(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).globalAnySignalTransition(Matchers.<SignalPayload>any());
+        inOrder.verify(mMockEventListener).onChangingState(TableMachine.State.INITIAL_STATE, TableMachine.State.ERROR);
+    }
+
+    @Test
+    public void testSatisfiedLocalTransitionBlocksGlobalTransitions() {
+        TableMachineImpl stateMachine = spy(new TableMachineImpl());
+        stateMachine.init(TableMachine.State.INITIAL_STATE, mMockEventListener);
+
+        stateMachine.send(TableMachine.Signal.START, new SignalPayload().put(KEY_SATISFY_LOCAL_SPECIFIC, true));
+
+        verify(stateMachine, never()).localAnySignalTransition(Matchers.<SignalPayload>any());
+        verify(stateMachine).globalSpecificSignalSpy(Matchers.<SignalPayload>any());
+        verify(stateMachine).globalAnySignalSpy(Matchers.<SignalPayload>any());
+        verify(stateMachine, never()).globalSpecificSignalTransition(Matchers.<SignalPayload>any());
+        verify(stateMachine, never()).globalAnySignalTransition(Matchers.<SignalPayload>any());
+        verify(mMockEventListener).onChangingState(TableMachine.State.INITIAL_STATE, TableMachine.State.STARTED);
+    }
+
+    @Test
+    public void testSatisfiedLocalAnySignalTransitionBlocksGlobalTransitions() {
+        TableMachineImpl stateMachine = spy(new TableMachineImpl());
+        stateMachine.init(TableMachine.State.INITIAL_STATE, mMockEventListener);
+
+        stateMachine.send(TableMachine.Signal.STOP, new SignalPayload().put(KEY_SATISFY_LOCAL_ANY, true));
+
+        verify(stateMachine, never()).localSpecificSignalSpy(Matchers.<SignalPayload>any());
+        verify(stateMachine, never()).localSpecificSignalTransition(Matchers.<SignalPayload>any());
+        verify(stateMachine).localAnySignalSpy(Matchers.<SignalPayload>any());
+        verify(stateMachine).localAnySignalTransition(Matchers.<SignalPayload>any());
+        verify(stateMachine, never()).globalAnySignalTransition(Matchers.<SignalPayload>any());
+        verify(mMockEventListener).onChangingState(TableMachine.State.INITIAL_STATE, TableMachine.State.STARTED);
+    }
+
+    @Test
+    public void testSignalWithoutSpecificConnectionsUsesGlobalAnySignalConnections() {
+        TableMachineImpl stateMachine = spy(new TableMachineImpl());
+        stateMachine.init(TableMachine.State.STARTED, mMockEventListener);
+
+        stateMachine.send(TableMachine.Signal.STOP, new SignalPayload().put(KEY_SATISFY_GLOBAL_SPECIFIC, true));
+
+        InOrder inOrder = Mockito.inOrder(stateMachine, mMockEventListener);
+        inOrder.verify(stateMachine).globalAnySignalSpy(Matchers.<SignalPayload>any());
+        inOrder.verify(stateMachine).globalAnySignalTransition(Matchers.<SignalPayload>any());
+        inOrder.verify(mMockEventListener).onChangingState(TableMachine.State.STARTED, TableMachine.State.ERROR);
+        verify(stateMachine, never()).globalSpecificSignalSpy(Matchers.<SignalPayload>any());
+        verify(stateMachine, never()).globalSpecificSignalTransition(Matchers.<SignalPayload>any());
+    }
+
+    @StateMachine(dispatchTable = true)
+    public static class TableMachine {
+
+        public static final String KEY_SATISFY_LOCAL_SPECIFIC = "satisfyLocalSpecific";
+        public static final String KEY_SATISFY_LOCAL_ANY = "satisfyLocalAny";
+        public static final String KEY_SATISFY_GLOBAL_SPECIFIC = "satisfyGlobalSpecific";
+
+        @Signals
+        public enum Signal {
+            START, STOP
+        }
+
+        @States
+        public enum State {
+            INITIAL_STATE,
+            STARTED,
+            ERROR
+        }
+
+        @Connection(from = "INITIAL_STATE", to = "STARTED", on = "START")
+        public boolean localSpecificSignalTransition(SignalPayload payload) {
+            return payload.getBoolean(KEY_SATISFY_LOCAL_SPECIFIC, false);
+        }
+
+        @Connection(from = "INITIAL_STATE", to = "STARTED", on = "*")
+        public boolean localAnySignalTransition(SignalPayload payload) {
+            return payload.getBoolean(KEY_SATISFY_LOCAL_ANY, false);
+        }
+
+        @Connection(from = "INITIAL_STATE", to = "*", on = "START")
+        public void localSpecificSignalSpy(SignalPayload payload) {
+        }
+
+        @Connection(from = "INITIAL_STATE", to = "*", on = "*")
+        public void localAnySignalSpy(SignalPayload payload) {
+        }
+
+        @Connection(from = "*", to = "ERROR", on = "START")
+        public boolean globalSpecificSignalTransition(SignalPayload payload) {
+            return payload.getBoolean(KEY_SATISFY_GLOBAL_SPECIFIC, false);
+        }
+
+        @Connection(from = "*", to = "*", on = "START")
+        public void globalSpecificSignalSpy(SignalPayload payload) {
+        }
+
+        @Connection(from = "*", to = "*", on = "*")
+        public void globalAnySignalSpy(SignalPayload payload) {
+        }
+
+        @Connection(from = "*", to = "ERROR", on = "*")
+        public void globalAnySignalTransition(SignalPayload payload) {
+        }
+    }
+}
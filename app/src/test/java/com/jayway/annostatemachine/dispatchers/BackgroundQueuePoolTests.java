@@ -26,8 +26,13 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 @RunWith(MockitoJUnitRunner.class)
 public class BackgroundQueuePoolTests {
@@ -42,41 +47,105 @@ public class BackgroundQueuePoolTests {
 
     @Test
     public void testSameDispatcherReturnedForSameId() {
-        BackgroundQueueDispatcher dispatcher1 = BackgroundQueuePool.getInstance().acquire(0);
-        BackgroundQueueDispatcher dispatcher2 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueueDispatcher dispatcher1 = BackgroundQueuePool.getInstance().acquire(0).getDispatcher();
+        BackgroundQueueDispatcher dispatcher2 = BackgroundQueuePool.getInstance().acquire(0).getDispatcher();
         assertEquals(dispatcher1, dispatcher2);
     }
 
     @Test
     public void testNotSameDispatcherReturnedForDifferentIds() {
-        BackgroundQueueDispatcher dispatcher1 = BackgroundQueuePool.getInstance().acquire(0);
-        BackgroundQueueDispatcher dispatcher2 = BackgroundQueuePool.getInstance().acquire(1);
+        BackgroundQueueDispatcher dispatcher1 = BackgroundQueuePool.getInstance().acquire(0).getDispatcher();
+        BackgroundQueueDispatcher dispatcher2 = BackgroundQueuePool.getInstance().acquire(1).getDispatcher();
         assertNotEquals(dispatcher1, dispatcher2);
     }
 
     @Test
     public void testNewDispatcherCreatedIfAllOfSameIdRelinquished() {
-        BackgroundQueueDispatcher dispatcher1 = BackgroundQueuePool.getInstance().acquire(0);
-        BackgroundQueuePool.getInstance().relinquish(0);
-        BackgroundQueueDispatcher dispatcher2 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.Lease lease1 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.getInstance().relinquish(lease1);
+        BackgroundQueuePool.Lease lease2 = BackgroundQueuePool.getInstance().acquire(0);
 
-        assertNotEquals(dispatcher1, dispatcher2);
+        assertNotEquals(lease1.getDispatcher(), lease2.getDispatcher());
     }
 
     @Test
     public void testNewDispatcherCreatedIfNullingReferences() throws InterruptedException {
-        BackgroundQueueDispatcher dispatcher1 = BackgroundQueuePool.getInstance().acquire(0);
-        BackgroundQueueDispatcher dispatcher2 = BackgroundQueuePool.getInstance().acquire(0);
-        int dispatcher1Hash = System.identityHashCode(dispatcher1);
-        int dispatcher2Hash = System.identityHashCode(dispatcher2);
+        BackgroundQueuePool.Lease lease1 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.Lease lease2 = BackgroundQueuePool.getInstance().acquire(0);
+        int dispatcher1Hash = System.identityHashCode(lease1.getDispatcher());
+        int dispatcher2Hash = System.identityHashCode(lease2.getDispatcher());
         Assert.assertEquals(dispatcher1Hash, dispatcher2Hash);
-        dispatcher1 = null;
-        dispatcher2 = null;
+        lease1 = null;
+        lease2 = null;
         System.runFinalization();
         System.gc();
-        BackgroundQueueDispatcher dispatcher3 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueueDispatcher dispatcher3 = BackgroundQueuePool.getInstance().acquire(0).getDispatcher();
         int dispatcher3Hash = System.identityHashCode(dispatcher3);
         assertNotEquals(dispatcher1Hash, dispatcher3Hash);
 
     }
+
+    @Test
+    public void testConcurrentAcquireAndRelinquishKeepsCount() throws InterruptedException {
+        final int threadCount = 8;
+        final int iterations = 10000;
+        final BackgroundQueuePool.Lease held = BackgroundQueuePool.getInstance().acquire(0);
+        final AtomicBoolean gotOtherDispatcher = new AtomicBoolean(false);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < iterations; j++) {
+                        BackgroundQueuePool.Lease lease = BackgroundQueuePool.getInstance().acquire(0);
+                        if (lease.getDispatcher() != held.getDispatcher()) {
+                            gotOtherDispatcher.set(true);
+                        }
+                        BackgroundQueuePool.getInstance().relinquish(lease);
+                    }
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+
+        assertFalse(gotOtherDispatcher.get());
+        BackgroundQueuePool.Lease last = BackgroundQueuePool.getInstance().acquire(0);
+        assertSame(held.getDispatcher(), last.getDispatcher());
+        BackgroundQueuePool.getInstance().relinquish(last);
+        BackgroundQueuePool.getInstance().relinquish(held);
+        assertNotEquals(held.getDispatcher(), BackgroundQueuePool.getInstance().acquire(0).getDispatcher());
+    }
+
+    @Test
+    public void testRelinquishingTwiceDoesNotAffectOtherUsers() {
+        BackgroundQueuePool.Lease lease1 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.Lease lease2 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.getInstance().relinquish(lease1);
+        BackgroundQueuePool.getInstance().relinquish(lease1);
+
+        assertFalse(lease2.getDispatcher().isShutDown());
+        assertSame(lease2.getDispatcher(), BackgroundQueuePool.getInstance().acquire(0).getDispatcher());
+    }
+
+    @Test
+    public void testLateRelinquishDoesNotAffectNewDispatcher() {
+        BackgroundQueuePool.Lease lease1 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.getInstance().relinquish(lease1);
+        BackgroundQueuePool.Lease lease2 = BackgroundQueuePool.getInstance().acquire(0);
+        BackgroundQueuePool.getInstance().relinquish(lease1);
+        BackgroundQueuePool.Lease lease3 = BackgroundQueuePool.getInstance().acquire(0);
+
+        assertNotEquals(lease1.getDispatcher(), lease2.getDispatcher());
+        assertFalse(lease2.getDispatcher().isShutDown());
+        assertSame(lease2.getDispatcher(), lease3.getDispatcher());
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.generated.TurnTakingMachineImpl;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FairSharedQueueTests {
+
+    private static final int SHARED_QUEUE_ID = 11;
+    private static final int CHATTY_SIGNAL_COUNT = 20;
+
+    enum Signal {
+        Chatty, Quiet
+    }
+
+    @Mock
+    StateMachineLogger mMockLogger;
+
+    @Before
+    public void setUp() {
+        BackgroundQueuePool.reset();
+    }
+
+    @Test
+    public void testCommonQueueIsFifo() throws InterruptedException {
+        List<Enum> order = sendChattyThenQuiet(SharedBackgroundQueueDispatcher.NO_FAIR_SHARE);
+        assertEquals(CHATTY_SIGNAL_COUNT, order.indexOf(Signal.Quiet));
+    }
+
+    @Test
+    public void testQuietMachineGetsTurnBeforeBacklogIsDone() throws InterruptedException {
+        List<Enum> order = sendChattyThenQuiet(4);
+        // The chatty machine's first turn is the blocking task and three signals
+        assertEquals(3, order.indexOf(Signal.Quiet));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSignalsPerTurnMustNotBeNegative() {
+        new SharedBackgroundQueueDispatcher(SHARED_QUEUE_ID, BackgroundQueueDispatcher.UNBOUNDED_CAPACITY,
+                OverflowPolicy.BLOCK, -1);
+    }
+
+    @Test
+    public void testGeneratedMachineWithSignalsPerTurn() throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(10);
+        TurnTakingMachineImpl machine = new TurnTakingMachineImpl(doneLatch);
+        machine.init(TurnTakingMachine.State.Running);
+        for (int i = 0; i < 10; i++) {
+            machine.send(TurnTakingMachine.Signal.Tick);
+        }
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        machine.shutDown();
+    }
+
+    /**
+     * @return The order in which the signals were dispatched.
+     */
+    private List<Enum> sendChattyThenQuiet(int signalsPerTurn) throws InterruptedException {
+        final List<Enum> order = new ArrayList<>();
+        final CountDownLatch doneLatch = new CountDownLatch(CHATTY_SIGNAL_COUNT + 1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                order.add(signal);
+                doneLatch.countDown();
+            }
+        };
+        SharedBackgroundQueueDispatcher chatty = new SharedBackgroundQueueDispatcher(SHARED_QUEUE_ID,
+                BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK, signalsPerTurn);
+        SharedBackgroundQueueDispatcher quiet = new SharedBackgroundQueueDispatcher(SHARED_QUEUE_ID,
+                BackgroundQueueDispatcher.UNBOUNDED_CAPACITY, OverflowPolicy.BLOCK, signalsPerTurn);
+
+        // Holds the shared thread until all signals have been sent
+        chatty.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, mMockLogger);
+        for (int i = 0; i < CHATTY_SIGNAL_COUNT; i++) {
+            chatty.dispatch(Signal.Chatty, new SignalPayload(), callback, mMockLogger);
+        }
+        quiet.dispatch(Signal.Quiet, new SignalPayload(), callback, mMockLogger);
+        releaseLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        chatty.shutDown();
+        quiet.shutDown();
+        return order;
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE,
+            queueId = SHARED_QUEUE_ID, signalsPerTurn = 2)
+    public static class TurnTakingMachine {
+
+        private final CountDownLatch mDoneLatch;
+
+        public TurnTakingMachine(CountDownLatch doneLatch) {
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Tick
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Tick")
+        public void onTick() {
+            mDoneLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.generated.IdleMachineImpl;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IdleTimeoutTests {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 50;
+
+    enum Signal {
+        First, Second, Third
+    }
+
+    @Mock
+    StateMachineLogger mMockLogger;
+
+    @Test
+    public void testThreadExitsWhenIdleAndIsRecreated() throws InterruptedException {
+        BackgroundQueueDispatcher dispatcher = new BackgroundQueueDispatcher(
+                BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE, BackgroundQueueDispatcher.UNBOUNDED_CAPACITY,
+                OverflowPolicy.BLOCK, IDLE_TIMEOUT_MILLIS);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) dispatcher.getExecutor();
+        RecordingCallback callback = new RecordingCallback(3);
+
+        dispatcher.dispatch(Signal.First, new SignalPayload(), callback, mMockLogger);
+        assertTrue(waitForPoolSize(executor, 0));
+
+        dispatcher.dispatch(Signal.Second, new SignalPayload(), callback, mMockLogger);
+        dispatcher.dispatch(Signal.Third, new SignalPayload(), callback, mMockLogger);
+        assertTrue(callback.mDoneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.<Enum>asList(Signal.First, Signal.Second, Signal.Third), callback.mDispatched);
+
+        dispatcher.shutDown();
+        assertFalse(dispatcher.tryDispatch(Signal.First, new SignalPayload(), callback, mMockLogger));
+    }
+
+    @Test
+    public void testThreadKeptWithoutIdleTimeout() throws InterruptedException {
+        BackgroundQueueDispatcher dispatcher = new BackgroundQueueDispatcher();
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) dispatcher.getExecutor();
+        RecordingCallback callback = new RecordingCallback(1);
+
+        dispatcher.dispatch(Signal.First, new SignalPayload(), callback, mMockLogger);
+        assertTrue(callback.mDoneLatch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        assertEquals(1, executor.getPoolSize());
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testGeneratedMachineWithIdleTimeout() throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(2);
+        IdleMachineImpl machine = new IdleMachineImpl(doneLatch);
+        machine.init(IdleMachine.State.Running);
+
+        machine.send(IdleMachine.Signal.Tick);
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        machine.send(IdleMachine.Signal.Tick);
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        machine.shutDown();
+    }
+
+    private static boolean waitForPoolSize(ThreadPoolExecutor executor, int poolSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getPoolSize() != poolSize) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static class RecordingCallback implements DispatchCallback {
+        final List<Enum> mDispatched = new ArrayList<>();
+        final CountDownLatch mDoneLatch;
+
+        RecordingCallback(int expectedCount) {
+            mDoneLatch = new CountDownLatch(expectedCount);
+        }
+
+        @Override
+        public void dispatchBlocking(Enum signal, SignalPayload payload) {
+            mDispatched.add(signal);
+            mDoneLatch.countDown();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE, idleTimeoutMillis = IDLE_TIMEOUT_MILLIS)
+    public static class IdleMachine {
+
+        private final CountDownLatch mDoneLatch;
+
+        public IdleMachine(CountDownLatch doneLatch) {
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Tick
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Tick")
+        public void onTick() {
+            mDoneLatch.countDown();
+        }
+    }
+}
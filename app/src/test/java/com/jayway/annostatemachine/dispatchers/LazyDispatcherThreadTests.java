@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LazyDispatcherThreadTests {
+
+    enum Signal {
+        Ping
+    }
+
+    @Mock
+    StateMachineLogger mMockLogger;
+
+    @Test
+    public void testBackgroundQueueThreadStartedByFirstSignal() throws InterruptedException {
+        BackgroundQueueDispatcher dispatcher = new BackgroundQueueDispatcher();
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) dispatcher.getExecutor();
+        assertEquals(0, executor.getPoolSize());
+
+        CountingCallback callback = new CountingCallback();
+        dispatcher.dispatch(Signal.Ping, new SignalPayload(), callback, mMockLogger);
+
+        assertTrue(callback.mDoneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getPoolSize());
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testRingBufferThreadStartedByFirstSignal() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(8, new BlockingWaitStrategy());
+        assertFalse(dispatcher.isThreadStarted());
+
+        CountingCallback callback = new CountingCallback();
+        dispatcher.dispatch(Signal.Ping, new SignalPayload(), callback, mMockLogger);
+
+        assertTrue(callback.mDoneLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.isThreadStarted());
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testRingBufferThreadStartedByRunnable() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(8, new BlockingWaitStrategy());
+        final CountDownLatch ranLatch = new CountDownLatch(1);
+
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                ranLatch.countDown();
+            }
+        }, mMockLogger);
+
+        assertTrue(ranLatch.await(5, TimeUnit.SECONDS));
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testUnusedRingBufferShutsDownWithoutThread() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(8, new BlockingWaitStrategy());
+
+        assertEquals(0, dispatcher.shutDownGracefully(1, TimeUnit.SECONDS));
+
+        assertTrue(dispatcher.isShutDown());
+        assertFalse(dispatcher.isThreadStarted());
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, mMockLogger);
+        assertFalse(dispatcher.isThreadStarted());
+    }
+
+    private static class CountingCallback implements DispatchCallback {
+        final CountDownLatch mDoneLatch = new CountDownLatch(1);
+
+        @Override
+        public void dispatchBlocking(Enum signal, SignalPayload payload) {
+            mDoneLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxTests {
+
+    @Test
+    public void testDrainScheduledOnlyWhenMailboxBecomesNonEmpty() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            mailbox.post(new RecordingTask(runOrder, i));
+        }
+        assertEquals(1, executor.mExecuteCount);
+
+        executor.runNext();
+        assertEquals(10, runOrder.size());
+        assertEquals(0, executor.mTasks.size());
+
+        mailbox.post(new RecordingTask(runOrder, 10));
+        assertEquals(2, executor.mExecuteCount);
+    }
+
+    @Test
+    public void testDrainYieldsToExecutorAfterBatch() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 4);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            mailbox.post(new RecordingTask(runOrder, i));
+        }
+
+        executor.runNext();
+        assertEquals(4, runOrder.size());
+        assertEquals(1, executor.mTasks.size());
+
+        // Posting while a drain is pending must not schedule another one
+        mailbox.post(new RecordingTask(runOrder, 10));
+        assertEquals(1, executor.mTasks.size());
+
+        executor.runNext();
+        executor.runNext();
+        assertEquals(11, runOrder.size());
+        assertEquals(0, executor.mTasks.size());
+        assertEquals(3, executor.mExecuteCount);
+        for (int i = 0; i < runOrder.size(); i++) {
+            assertEquals(i, (int) runOrder.get(i));
+        }
+    }
+
+    @Test
+    public void testTaskPostedDuringDrainRunsInSameDrain() {
+        ManualExecutor executor = new ManualExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 100);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                runOrder.add(0);
+                mailbox.post(new RecordingTask(runOrder, 1));
+            }
+        });
+        executor.runNext();
+
+        assertEquals(2, runOrder.size());
+        assertEquals(1, executor.mExecuteCount);
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100, 2, OverflowPolicy.REJECT);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        assertTrue(mailbox.post(new RecordingTask(runOrder, 0)));
+        assertTrue(mailbox.post(new RecordingTask(runOrder, 1)));
+        assertFalse(mailbox.post(new RecordingTask(runOrder, 2)));
+        assertEquals(1, mailbox.getRejectedCount());
+
+        executor.runNext();
+        assertEquals(Arrays.asList(0, 1), runOrder);
+        assertTrue(mailbox.post(new RecordingTask(runOrder, 3)));
+    }
+
+    @Test
+    public void testDropNewestWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100, 2, OverflowPolicy.DROP_NEWEST);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            mailbox.post(new RecordingTask(runOrder, i));
+        }
+        executor.runNext();
+
+        assertEquals(Arrays.asList(0, 1), runOrder);
+        assertEquals(2, mailbox.getDroppedCount());
+        assertEquals(0, mailbox.getRejectedCount());
+    }
+
+    @Test
+    public void testDropOldestWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100, 2, OverflowPolicy.DROP_OLDEST);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mailbox.post(new RecordingTask(runOrder, i)));
+        }
+        executor.runNext();
+
+        assertEquals(Arrays.asList(2, 3), runOrder);
+        assertEquals(2, mailbox.getDroppedCount());
+
+        // The mailbox keeps working after dropping
+        mailbox.post(new RecordingTask(runOrder, 4));
+        executor.runNext();
+        assertEquals(Arrays.asList(2, 3, 4), runOrder);
+    }
+
+    @Test
+    public void testExemptTaskIsAddedWhenFullWithoutGrowingCapacity() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100, 1, OverflowPolicy.REJECT);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        assertTrue(mailbox.post(new RecordingTask(runOrder, 0)));
+        mailbox.postExempt(new RecordingTask(runOrder, 1));
+        assertFalse(mailbox.post(new RecordingTask(runOrder, 2)));
+
+        executor.runNext();
+        assertEquals(Arrays.asList(0, 1), runOrder);
+        assertTrue(mailbox.post(new RecordingTask(runOrder, 3)));
+        assertFalse(mailbox.post(new RecordingTask(runOrder, 4)));
+    }
+
+    @Test
+    public void testDropOldestKeepsExemptTasks() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100, 2, OverflowPolicy.DROP_OLDEST);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        mailbox.postExempt(new RecordingTask(runOrder, 0));
+        for (int i = 1; i < 5; i++) {
+            assertTrue(mailbox.post(new RecordingTask(runOrder, i)));
+        }
+        executor.runNext();
+
+        assertEquals(Arrays.asList(0, 3, 4), runOrder);
+        assertEquals(2, mailbox.getDroppedCount());
+    }
+
+    @Test
+    public void testDropOldestReportsNewTaskDroppedWhenNothingOlderCanBe() {
+        ManualExecutor executor = new ManualExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 100, 1, OverflowPolicy.DROP_OLDEST);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+        final boolean[] accepted = {true};
+
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                // The mailbox is full and only holds the exempt task
+                accepted[0] = mailbox.post(new RecordingTask(runOrder, 2));
+            }
+        });
+        mailbox.postExempt(new RecordingTask(runOrder, 1));
+        executor.runNext();
+
+        assertFalse(accepted[0]);
+        assertEquals(Arrays.asList(1), runOrder);
+        assertEquals(1, mailbox.getDroppedCount());
+        assertEquals(0, executor.mTasks.size());
+    }
+
+    @Test
+    public void testBlockWhenFullWaitsForRoom() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 100, 1, OverflowPolicy.BLOCK);
+        final CountDownLatch startedLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch postedLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+
+        // Occupies the drain so that the next task stays in the queue
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                startedLatch.countDown();
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        doneLatch.countDown();
+                    }
+                });
+                postedLatch.countDown();
+            }
+        }).start();
+
+        assertFalse(postedLatch.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, mailbox.getBlockedCount());
+
+        releaseLatch.countDown();
+        assertTrue(postedLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBlockWhenFullRejectsPostFromDrainingThread() {
+        ManualExecutor executor = new ManualExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 100, 1, OverflowPolicy.BLOCK);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+        final boolean[] accepted = new boolean[2];
+
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                accepted[0] = mailbox.post(new RecordingTask(runOrder, 1));
+                accepted[1] = mailbox.post(new RecordingTask(runOrder, 2));
+            }
+        });
+        executor.runNext();
+
+        assertTrue(accepted[0]);
+        assertFalse(accepted[1]);
+        assertEquals(1, mailbox.getRejectedCount());
+        assertEquals(Arrays.asList(1), runOrder);
+    }
+
+    @Test
+    public void testBlockWhenFullRejectsPostFromMailboxOnSameExecutor() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        Mailbox sender = new Mailbox(executor, 100);
+        final Mailbox receiver = new Mailbox(executor, 100, 1, OverflowPolicy.BLOCK);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+        final boolean[] accepted = new boolean[2];
+        final CountDownLatch postedLatch = new CountDownLatch(1);
+
+        sender.post(new Runnable() {
+            @Override
+            public void run() {
+                // The receiver can only be drained by this thread, so waiting for room would
+                // never end
+                accepted[0] = receiver.post(new RecordingTask(runOrder, 1));
+                accepted[1] = receiver.post(new RecordingTask(runOrder, 2));
+                postedLatch.countDown();
+            }
+        });
+
+        assertTrue(postedLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(accepted[0]);
+        assertFalse(accepted[1]);
+        assertEquals(1, receiver.getRejectedCount());
+        assertEquals(0, receiver.getBlockedCount());
+        assertTrue(receiver.awaitEmpty(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1), runOrder);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testBlockWhenFullWaitsForMailboxOnExecutorWithMoreThreads() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Mailbox sender = new Mailbox(executor, 100);
+        final Mailbox receiver = new Mailbox(executor, 100, 1, OverflowPolicy.BLOCK);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+        final boolean[] accepted = new boolean[2];
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch postedLatch = new CountDownLatch(1);
+
+        // Keeps the receiver busy on one of the threads
+        receiver.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        sender.post(new Runnable() {
+            @Override
+            public void run() {
+                accepted[0] = receiver.post(new RecordingTask(runOrder, 1));
+                accepted[1] = receiver.post(new RecordingTask(runOrder, 2));
+                postedLatch.countDown();
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receiver.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, receiver.getBlockedCount());
+        releaseLatch.countDown();
+
+        assertTrue(postedLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(accepted[0]);
+        assertTrue(accepted[1]);
+        assertTrue(receiver.awaitEmpty(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2), runOrder);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testClearReleasesBlockedSender() throws InterruptedException {
+        final Mailbox mailbox = new Mailbox(new ManualExecutor(), 100, 1, OverflowPolicy.BLOCK);
+        final CountDownLatch postedLatch = new CountDownLatch(1);
+        final boolean[] accepted = {true};
+
+        mailbox.post(new RecordingTask(new ArrayList<Integer>(), 0));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accepted[0] = mailbox.post(new RecordingTask(new ArrayList<Integer>(), 1));
+                postedLatch.countDown();
+            }
+        }).start();
+        Thread.sleep(50);
+        mailbox.clear();
+
+        assertTrue(postedLatch.await(5, TimeUnit.SECONDS));
+        assertFalse(accepted[0]);
+    }
+
+    @Test
+    public void testUrgentTasksRunBeforeWaitingTasks() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        mailbox.post(new RecordingTask(runOrder, 0));
+        mailbox.post(new RecordingTask(runOrder, 1));
+        mailbox.postUrgent(new RecordingTask(runOrder, 2));
+        mailbox.postUrgent(new RecordingTask(runOrder, 3));
+        assertEquals(1, executor.mExecuteCount);
+
+        executor.runNext();
+        assertEquals(Arrays.asList(2, 3, 0, 1), runOrder);
+    }
+
+    @Test
+    public void testUrgentTaskIsAddedWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100, 1, OverflowPolicy.REJECT);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        assertTrue(mailbox.post(new RecordingTask(runOrder, 0)));
+        mailbox.postUrgent(new RecordingTask(runOrder, 1));
+        assertFalse(mailbox.post(new RecordingTask(runOrder, 2)));
+
+        executor.runNext();
+        assertEquals(Arrays.asList(1, 0), runOrder);
+        assertEquals(1, mailbox.getRejectedCount());
+    }
+
+    @Test
+    public void testAwaitEmptyAndClear() throws InterruptedException {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 100);
+        ArrayList<Integer> runOrder = new ArrayList<>();
+
+        assertTrue(mailbox.awaitEmpty(0, TimeUnit.MILLISECONDS));
+        mailbox.post(new RecordingTask(runOrder, 0));
+        assertFalse(mailbox.awaitEmpty(10, TimeUnit.MILLISECONDS));
+        executor.runNext();
+        assertTrue(mailbox.awaitEmpty(0, TimeUnit.MILLISECONDS));
+
+        mailbox.post(new RecordingTask(runOrder, 1));
+        mailbox.postUrgent(new RecordingTask(runOrder, 2));
+        assertEquals(2, mailbox.clear());
+        assertFalse(mailbox.awaitEmpty(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testHandedOffTasksRunRightAfterPostingTask() throws InterruptedException {
+        ManualExecutor executor = new ManualExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 100, Mailbox.UNBOUNDED, OverflowPolicy.BLOCK, true);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                runOrder.add(0);
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        runOrder.add(2);
+                        mailbox.post(new RecordingTask(runOrder, 4));
+                    }
+                });
+                mailbox.post(new RecordingTask(runOrder, 3));
+            }
+        });
+        mailbox.post(new RecordingTask(runOrder, 1));
+        assertEquals(1, executor.mExecuteCount);
+
+        executor.runNext();
+        assertEquals(Arrays.asList(0, 2, 3, 4, 1), runOrder);
+        assertEquals(1, executor.mExecuteCount);
+        assertTrue(mailbox.awaitEmpty(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testHandedOffTasksBeyondBatchGoToBackOfQueue() {
+        ManualExecutor executor = new ManualExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 2, Mailbox.UNBOUNDED, OverflowPolicy.BLOCK, true);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                runOrder.add(0);
+                for (int i = 2; i < 5; i++) {
+                    mailbox.post(new RecordingTask(runOrder, i));
+                }
+            }
+        });
+        mailbox.post(new RecordingTask(runOrder, 1));
+
+        executor.runNext();
+        assertEquals(Arrays.asList(0, 2), runOrder);
+        assertEquals(1, executor.mTasks.size());
+
+        executor.runNext();
+        executor.runNext();
+        assertEquals(Arrays.asList(0, 2, 1, 3, 4), runOrder);
+        assertEquals(0, executor.mTasks.size());
+    }
+
+    @Test
+    public void testHandedOffTasksBeyondBatchDoNotGrowCapacity() {
+        ManualExecutor executor = new ManualExecutor();
+        final Mailbox mailbox = new Mailbox(executor, 1, 2, OverflowPolicy.REJECT, true);
+        final ArrayList<Integer> runOrder = new ArrayList<>();
+
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                runOrder.add(0);
+                for (int i = 1; i < 4; i++) {
+                    mailbox.post(new RecordingTask(runOrder, i));
+                }
+            }
+        });
+        executor.runNext();
+        assertFalse(mailbox.post(new RecordingTask(runOrder, 10)));
+
+        executor.runNext();
+        executor.runNext();
+        executor.runNext();
+        assertEquals(Arrays.asList(0, 1, 2, 3), runOrder);
+        assertEquals(0, executor.mTasks.size());
+
+        int acceptedCount = 0;
+        for (int i = 0; i < 5; i++) {
+            if (mailbox.post(new RecordingTask(runOrder, 4 + i))) {
+                acceptedCount++;
+            }
+        }
+        assertEquals(2, acceptedCount);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchSizeMustBePositive() {
+        new Mailbox(new ManualExecutor(), 0);
+    }
+
+    private static class RecordingTask implements Runnable {
+        private final ArrayList<Integer> mRunOrder;
+        private final int mId;
+
+        RecordingTask(ArrayList<Integer> runOrder, int id) {
+            mRunOrder = runOrder;
+            mId = id;
+        }
+
+        @Override
+        public void run() {
+            mRunOrder.add(mId);
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        final LinkedList<Runnable> mTasks = new LinkedList<>();
+        int mExecuteCount;
+
+        @Override
+        public void execute(Runnable command) {
+            mExecuteCount++;
+            mTasks.add(command);
+        }
+
+        void runNext() {
+            mTasks.removeFirst().run();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.StateMachineFront;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.generated.StageMachineImpl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineTests {
+
+    private Pipeline mPipeline;
+
+    @After
+    public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.shutDown();
+        }
+    }
+
+    @Test
+    public void testSignalsPassThroughStagesInOrder() throws InterruptedException {
+        mPipeline = new Pipeline.Builder()
+                .addStage("parser")
+                .addStage("validator")
+                .addStage("router")
+                .link("parser", "validator")
+                .link("validator", "router")
+                .linkCapacity(16)
+                .build();
+        StageMachineImpl router = newMachine("router", null);
+        StageMachineImpl validator = newMachine("validator", router);
+        StageMachineImpl parser = newMachine("parser", validator);
+        int signalCount = 10000;
+        router.doneLatch = new CountDownLatch(signalCount);
+
+        for (int i = 0; i < signalCount; i++) {
+            parser.send(StageMachine.Signal.Item, new SignalPayload().put("sequence", i));
+        }
+
+        assertTrue(router.doneLatch.await(10, TimeUnit.SECONDS));
+        assertFalse("Signals were dispatched out of order", router.outOfOrder);
+        assertEquals("Pipeline-parser", parser.lastThread.getName());
+        assertNotSame(parser.lastThread, validator.lastThread);
+        assertNotSame(validator.lastThread, router.lastThread);
+    }
+
+    @Test
+    public void testFullLinkHoldsBackStageBefore() throws InterruptedException {
+        mPipeline = new Pipeline.Builder()
+                .addStage("fast")
+                .addStage("slow")
+                .link("fast", "slow")
+                .linkCapacity(4)
+                .build();
+        StageMachineImpl slow = newMachine("slow", null);
+        slow.delayMillis = 1;
+        StageMachineImpl fast = newMachine("fast", slow);
+        int signalCount = 100;
+        slow.doneLatch = new CountDownLatch(signalCount);
+
+        for (int i = 0; i < signalCount; i++) {
+            fast.send(StageMachine.Signal.Item, new SignalPayload().put("sequence", i));
+        }
+
+        assertTrue(slow.doneLatch.await(10, TimeUnit.SECONDS));
+        assertFalse("Signals were dispatched out of order", slow.outOfOrder);
+        assertTrue(mPipeline.getStage("slow").getBackPressureCount() > 0);
+        assertEquals(0, mPipeline.getStage("fast").getBackPressureCount());
+        assertSame(mPipeline.getStage("slow"), mPipeline.getBusiestStage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCycleIsRejected() {
+        new Pipeline.Builder()
+                .addStage("a")
+                .addStage("b")
+                .addStage("c")
+                .link("a", "b")
+                .link("b", "c")
+                .link("c", "a")
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLinkToUnknownStageIsRejected() {
+        new Pipeline.Builder()
+                .addStage("a")
+                .link("a", "b")
+                .build();
+    }
+
+    private StageMachineImpl newMachine(String stage, StateMachineFront<StageMachine.Signal> next) {
+        StageMachineImpl machine = new StageMachineImpl();
+        machine.next = next;
+        machine.init(StageMachine.State.Running, mPipeline.getStage(stage));
+        return machine;
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class StageMachine {
+
+        public volatile StateMachineFront<Signal> next;
+        public volatile CountDownLatch doneLatch;
+        public volatile Thread lastThread;
+        public volatile boolean outOfOrder;
+        public volatile int delayMillis;
+        private int mNextSequence;
+
+        @Signals
+        public enum Signal {
+            Item
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Item")
+        public void onItem(int sequence) {
+            lastThread = Thread.currentThread();
+            if (sequence != mNextSequence) {
+                outOfOrder = true;
+            }
+            mNextSequence = sequence + 1;
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (next != null) {
+                next.send(Signal.Item, new SignalPayload().put("sequence", sequence));
+            } else {
+                doneLatch.countDown();
+            }
+        }
+    }
+}
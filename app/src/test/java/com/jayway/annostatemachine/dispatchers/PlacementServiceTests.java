@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalDispatcherFactory;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.StateMachineFront;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.generated.PeerMachineImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PlacementServiceTests {
+
+    private PlacementService mService;
+
+    @Before
+    public void setUp() {
+        mService = new PlacementService(2);
+    }
+
+    @After
+    public void tearDown() {
+        mService.shutDown();
+    }
+
+    @Test
+    public void testChattyMachinesArePutOnSameThread() throws InterruptedException {
+        PeerMachineImpl machine1 = newMachine();
+        PeerMachineImpl machine2 = newMachine();
+        machine1.peer = machine2;
+        machine2.peer = machine1;
+
+        pingPong(machine1, 1000);
+        assertNotEquals(machine1.lastThread, machine2.lastThread);
+
+        assertEquals(1, mService.rebalance());
+        pingPong(machine1, 10);
+
+        assertSame(machine1.lastThread, machine2.lastThread);
+        assertEquals(1, mService.getMigrationCount());
+    }
+
+    @Test
+    public void testBusyIndependentMachinesAreSpread() throws InterruptedException {
+        PlacementService.PlacedDispatcher[] dispatchers = new PlacementService.PlacedDispatcher[2];
+        PeerMachineImpl machine1 = newMachine(dispatchers, 0);
+        PeerMachineImpl machine2 = newMachine(dispatchers, 1);
+        mService.moveTo(dispatchers[1], dispatchers[0].mThreadIndex);
+
+        pingPong(machine1, 200);
+        pingPong(machine2, 200);
+        assertSame(machine1.lastThread, machine2.lastThread);
+
+        assertEquals(1, mService.rebalance());
+        pingPong(machine1, 1);
+        pingPong(machine2, 1);
+
+        assertNotEquals(machine1.lastThread, machine2.lastThread);
+        // Nothing more to do when the load has not changed
+        pingPong(machine1, 200);
+        pingPong(machine2, 200);
+        assertEquals(0, mService.rebalance());
+    }
+
+    @Test
+    public void testMovingKeepsSignalsInOrder() throws InterruptedException {
+        PlacementService.PlacedDispatcher[] dispatchers = new PlacementService.PlacedDispatcher[1];
+        PeerMachineImpl machine = newMachine(dispatchers, 0);
+        int signalCount = 20000;
+        machine.doneLatch = new CountDownLatch(signalCount);
+
+        for (int i = 0; i < signalCount; i++) {
+            machine.send(PeerMachine.Signal.Count, new SignalPayload().put("sequence", i));
+            if (i % 100 == 0) {
+                mService.moveTo(dispatchers[0], (dispatchers[0].mThreadIndex + 1) % 2);
+            }
+        }
+
+        assertTrue(machine.doneLatch.await(10, TimeUnit.SECONDS));
+        assertFalse("Signals were dispatched out of order", machine.outOfOrder);
+        assertFalse("Signals were dispatched at the same time", machine.overlapped);
+    }
+
+    private PeerMachineImpl newMachine() {
+        PeerMachineImpl machine = new PeerMachineImpl();
+        machine.self = machine;
+        machine.init(PeerMachine.State.Running, null, null, mService);
+        return machine;
+    }
+
+    private PeerMachineImpl newMachine(final PlacementService.PlacedDispatcher[] dispatchers, final int index) {
+        PeerMachineImpl machine = new PeerMachineImpl();
+        machine.self = machine;
+        machine.init(PeerMachine.State.Running, null, null, new SignalDispatcherFactory() {
+            @Override
+            public SignalDispatcher create() {
+                dispatchers[index] = (PlacementService.PlacedDispatcher) mService.create();
+                return dispatchers[index];
+            }
+        });
+        return machine;
+    }
+
+    private static void pingPong(PeerMachineImpl machine, int hops) throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        machine.doneLatch = doneLatch;
+        if (machine.peer != null) {
+            ((PeerMachine) machine.peer).doneLatch = doneLatch;
+        }
+        machine.send(PeerMachine.Signal.Ping, new SignalPayload().put("hops", hops));
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class PeerMachine {
+
+        public volatile StateMachineFront<Signal> peer;
+        public volatile StateMachineFront<Signal> self;
+        public volatile CountDownLatch doneLatch;
+        public volatile Thread lastThread;
+        public volatile boolean outOfOrder;
+        public volatile boolean overlapped;
+        private final AtomicInteger mDispatching = new AtomicInteger();
+        private int mNextSequence;
+
+        @Signals
+        public enum Signal {
+            Ping, Count
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Ping")
+        public void onPing(int hops) {
+            lastThread = Thread.currentThread();
+            if (hops > 0) {
+                (peer != null ? peer : self).send(Signal.Ping, new SignalPayload().put("hops", hops - 1));
+            } else {
+                doneLatch.countDown();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            if (mDispatching.incrementAndGet() != 1) {
+                overlapped = true;
+            }
+            if (sequence != mNextSequence) {
+                outOfOrder = true;
+            }
+            mNextSequence = sequence + 1;
+            mDispatching.decrementAndGet();
+            doneLatch.countDown();
+        }
+    }
+}
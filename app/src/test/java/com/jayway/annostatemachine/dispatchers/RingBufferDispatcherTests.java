@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RingBufferDispatcherTests {
+
+    private static final int NUM_PRODUCERS = 4;
+    private static final int SIGNALS_PER_PRODUCER = 10000;
+
+    enum Signal {
+        Count
+    }
+
+    @Mock
+    StateMachineLogger mMockLogger;
+
+    @Test
+    public void testOrderPerProducerWithBlockingWaitStrategy() throws InterruptedException {
+        sendFromProducers(new BlockingWaitStrategy());
+    }
+
+    @Test
+    public void testOrderPerProducerWithYieldingWaitStrategy() throws InterruptedException {
+        sendFromProducers(new YieldingWaitStrategy());
+    }
+
+    @Test
+    public void testOrderPerProducerWithBusySpinWaitStrategy() throws InterruptedException {
+        sendFromProducers(new BusySpinWaitStrategy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBufferSizeMustBePowerOfTwo() {
+        new RingBufferDispatcher(12, new BlockingWaitStrategy());
+    }
+
+    @Test
+    public void testRunnablesRunInOrderWithSignals() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(4, new BlockingWaitStrategy());
+        final StringBuilder order = new StringBuilder();
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                order.append("s");
+            }
+        };
+
+        dispatcher.dispatch(Signal.Count, new SignalPayload(), callback, mMockLogger);
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                order.append("r");
+            }
+        }, mMockLogger);
+        dispatcher.dispatch(Signal.Count, new SignalPayload(), callback, mMockLogger);
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                doneLatch.countDown();
+            }
+        }, mMockLogger);
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("srs", order.toString());
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testSendOnDispatchThreadWhenFullDoesNotDeadLock() throws InterruptedException {
+        final RingBufferDispatcher dispatcher = new RingBufferDispatcher(2, new BlockingWaitStrategy());
+        final AtomicInteger numDispatched = new AtomicInteger();
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        final DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                numDispatched.incrementAndGet();
+            }
+        };
+
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    dispatcher.dispatch(Signal.Count, new SignalPayload(), callback, mMockLogger);
+                }
+                doneLatch.countDown();
+            }
+        }, mMockLogger);
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        dispatcher.shutDown();
+        assertTrue(numDispatched.get() <= 2);
+    }
+
+    @Test
+    public void testNoDispatchAfterShutDown() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(16, new BlockingWaitStrategy());
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final AtomicInteger numDispatched = new AtomicInteger();
+        DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                numDispatched.incrementAndGet();
+            }
+        };
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(Signal.Count, new SignalPayload(), callback, mMockLogger);
+        }
+        dispatcher.shutDown();
+        releaseLatch.countDown();
+        Thread.sleep(100);
+
+        assertTrue(dispatcher.isShutDown());
+        assertTrue(numDispatched.get() <= 1);
+    }
+
+    @Test
+    public void testDispatchThreadStopsWhenCallbackGarbageCollected() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(16, new BlockingWaitStrategy());
+        dispatchWithTemporaryCallback(dispatcher);
+
+        for (int i = 0; i < 50 && !dispatcher.isShutDown(); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertTrue(dispatcher.isShutDown());
+    }
+
+    private void dispatchWithTemporaryCallback(RingBufferDispatcher dispatcher) throws InterruptedException {
+        final CountDownLatch dispatchedLatch = new CountDownLatch(1);
+        dispatcher.dispatch(Signal.Count, new SignalPayload(), new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                dispatchedLatch.countDown();
+            }
+        }, mMockLogger);
+        assertTrue(dispatchedLatch.await(5, TimeUnit.SECONDS));
+    }
+
+    private void sendFromProducers(WaitStrategy waitStrategy) throws InterruptedException {
+        // A small ring makes the producers wrap around many times
+        final RingBufferDispatcher dispatcher = new RingBufferDispatcher(64, waitStrategy);
+        final CountDownLatch doneLatch = new CountDownLatch(NUM_PRODUCERS * SIGNALS_PER_PRODUCER);
+        final int[] nextSequence = new int[NUM_PRODUCERS];
+        final boolean[] outOfOrder = new boolean[1];
+        final DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                int producer = payload.getInt("producer", -1);
+                int sequence = payload.getInt("sequence", -1);
+                if (nextSequence[producer] != sequence) {
+                    outOfOrder[0] = true;
+                }
+                nextSequence[producer] = sequence + 1;
+                doneLatch.countDown();
+            }
+        };
+
+        for (int i = 0; i < NUM_PRODUCERS; i++) {
+            final int producer = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int sequence = 0; sequence < SIGNALS_PER_PRODUCER; sequence++) {
+                        dispatcher.dispatch(Signal.Count, new SignalPayload()
+                                .put("producer", producer).put("sequence", sequence), callback, mMockLogger);
+                    }
+                }
+            }).start();
+        }
+
+        assertTrue(doneLatch.await(30, TimeUnit.SECONDS));
+        dispatcher.shutDown();
+        assertFalse(outOfOrder[0]);
+    }
+}
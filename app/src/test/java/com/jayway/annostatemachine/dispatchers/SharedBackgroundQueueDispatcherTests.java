@@ -16,6 +16,7 @@
 
 package com.jayway.annostatemachine.dispatchers;
 
+import com.jayway.annostatemachine.Config;
 import com.jayway.annostatemachine.SignalPayload;
 import com.jayway.annostatemachine.StateMachineEventListener;
 import com.jayway.annostatemachine.annotations.Connection;
@@ -34,8 +35,13 @@ import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.spy;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -113,6 +119,54 @@ public class SharedBackgroundQueueDispatcherTests {
         assertEquals(spiedMachineOne.onStartCallingThreadId, spiedMachineTwo.onStartCallingThreadId);
     }
 
+    @Test
+    public void testUnreferencedDispatcherGivesUpItsPlaceOnTheQueue() throws InterruptedException {
+        int queueId = 17;
+        long reclaimedCount = SharedBackgroundQueueDispatcher.getReclaimedCount();
+        SharedBackgroundQueueDispatcher dispatcher = new SharedBackgroundQueueDispatcher(queueId);
+        final AtomicReference<Thread> queueThread = new AtomicReference<>();
+        final CountDownLatch ranLatch = new CountDownLatch(1);
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                queueThread.set(Thread.currentThread());
+                ranLatch.countDown();
+            }
+        }, Config.get().getLogger());
+        assertTrue(ranLatch.await(5, TimeUnit.SECONDS));
+
+        // Only the thread is held on to, neither the dispatcher nor its queue
+        dispatcher = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (SharedBackgroundQueueDispatcher.getReclaimedCount() == reclaimedCount
+                && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        // Machines leaked by other tests may have been reclaimed as well
+        assertTrue(SharedBackgroundQueueDispatcher.getReclaimedCount() > reclaimedCount);
+        queueThread.get().join(5000);
+        assertFalse("Queue thread still running", queueThread.get().isAlive());
+    }
+
+    @Test
+    public void testShutDownDispatcherGivesUpItsPlaceOnlyOnce() throws InterruptedException {
+        int queueId = 18;
+        SharedBackgroundQueueDispatcher dispatcher = new SharedBackgroundQueueDispatcher(queueId);
+        BackgroundQueueDispatcher queue = BackgroundQueuePool.getInstance().acquire(queueId).getDispatcher();
+        dispatcher.shutDown();
+        dispatcher.shutDown();
+
+        // Not given up again when collected
+        dispatcher = null;
+        System.gc();
+        Thread.sleep(100);
+
+        // The queue is still held by the acquire above
+        assertSame(queue, BackgroundQueuePool.getInstance().acquire(queueId).getDispatcher());
+    }
+
     @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE, queueId = SHARED_QUEUE_ID)
     public static class MachineOne {
 
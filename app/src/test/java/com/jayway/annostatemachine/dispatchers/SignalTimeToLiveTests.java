@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchers;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SignalTimeToLiveTests {
+
+    enum Signal {
+        Fresh, Stale
+    }
+
+    @Mock
+    StateMachineLogger mMockLogger;
+
+    @Test
+    public void testPayloadExpiresAfterTimeToLive() throws InterruptedException {
+        SignalPayload payload = new SignalPayload().setTimeToLive(10, TimeUnit.MILLISECONDS);
+        assertFalse(payload.isExpired());
+        Thread.sleep(20);
+        assertTrue(payload.isExpired());
+        assertFalse(new SignalPayload().isExpired());
+    }
+
+    @Test
+    public void testBackgroundQueueDropsExpiredSignals() throws InterruptedException {
+        BackgroundQueueDispatcher dispatcher = new BackgroundQueueDispatcher();
+        RecordingCallback callback = new RecordingCallback();
+
+        sendWhileBlocked(dispatcher, callback);
+
+        assertTrue(callback.mDoneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.<Enum>asList(Signal.Fresh, Signal.Fresh), callback.mDispatched);
+        assertEquals(1, dispatcher.getExpiredCount());
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testRingBufferDropsExpiredSignals() throws InterruptedException {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(8, new BlockingWaitStrategy());
+        RecordingCallback callback = new RecordingCallback();
+
+        sendWhileBlocked(dispatcher, callback);
+
+        assertTrue(callback.mDoneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.<Enum>asList(Signal.Fresh, Signal.Fresh), callback.mDispatched);
+        assertEquals(1, dispatcher.getExpiredCount());
+        dispatcher.shutDown();
+    }
+
+    /**
+     * Occupies the dispatch thread until the short lived signal has expired.
+     */
+    private void sendWhileBlocked(SignalDispatcher dispatcher,
+                                  RecordingCallback callback) {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, mMockLogger);
+        dispatcher.dispatch(Signal.Fresh, new SignalPayload().setTimeToLive(1, TimeUnit.MINUTES), callback, mMockLogger);
+        dispatcher.dispatch(Signal.Stale, new SignalPayload().setTimeToLive(1, TimeUnit.MILLISECONDS), callback, mMockLogger);
+        dispatcher.dispatch(Signal.Fresh, new SignalPayload(), callback, mMockLogger);
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        releaseLatch.countDown();
+    }
+
+    private static class RecordingCallback implements DispatchCallback {
+        final List<Enum> mDispatched = new ArrayList<>();
+        final CountDownLatch mDoneLatch = new CountDownLatch(2);
+
+        @Override
+        public void dispatchBlocking(Enum signal, SignalPayload payload) {
+            mDispatched.add(signal);
+            mDoneLatch.countDown();
+        }
+    }
+}
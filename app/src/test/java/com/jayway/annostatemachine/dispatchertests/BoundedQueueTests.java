@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.Config;
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchers.OverflowPolicy;
+import com.jayway.annostatemachine.dispatchertests.generated.BoundedMachineImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedQueueTests {
+
+    @Test
+    public void testTrySendRejectedWhenQueueFull() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        BoundedMachineImpl machine = new BoundedMachineImpl(startedLatch, blockingLatch);
+        machine.init(BoundedMachine.State.Idle);
+
+        machine.send(BoundedMachine.Signal.Block);
+        assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+
+        // The blocked signal has left the queue so there is room for exactly one more
+        assertTrue(machine.trySend(BoundedMachine.Signal.Block, new SignalPayload()));
+        assertFalse(machine.trySend(BoundedMachine.Signal.Block, new SignalPayload()));
+
+        blockingLatch.countDown();
+        machine.shutDown();
+    }
+
+    @Test
+    public void testRunnableOnDispatchThreadRunsWhenQueueFull() throws InterruptedException {
+        final CountDownLatch blockingLatch = new CountDownLatch(1);
+        final CountDownLatch startedLatch = new CountDownLatch(1);
+        final CountDownLatch ranLatch = new CountDownLatch(1);
+        BackgroundQueueDispatcher dispatcher = new BackgroundQueueDispatcher(
+                BackgroundQueueDispatcher.DEFAULT_DRAIN_BATCH_SIZE, 1, OverflowPolicy.REJECT);
+        DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+                startedLatch.countDown();
+                try {
+                    blockingLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        dispatcher.dispatch(BoundedMachine.Signal.Block, new SignalPayload(), callback, Config.get().getLogger());
+        assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.tryDispatch(BoundedMachine.Signal.Block, new SignalPayload(), callback, Config.get().getLogger()));
+        dispatcher.runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                ranLatch.countDown();
+            }
+        }, Config.get().getLogger());
+        assertFalse(dispatcher.tryDispatch(BoundedMachine.Signal.Block, new SignalPayload(), callback, Config.get().getLogger()));
+
+        blockingLatch.countDown();
+        assertTrue(ranLatch.await(5, TimeUnit.SECONDS));
+        dispatcher.shutDown();
+    }
+
+    @Test
+    public void testTrySendFalseAfterShutDown() {
+        BoundedMachineImpl machine = new BoundedMachineImpl(new CountDownLatch(1), new CountDownLatch(0));
+        machine.init(BoundedMachine.State.Idle);
+        machine.shutDown();
+
+        assertFalse(machine.trySend(BoundedMachine.Signal.Block, new SignalPayload()));
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE, queueCapacity = 1,
+            overflowPolicy = OverflowPolicy.REJECT)
+    public static class BoundedMachine {
+
+        private final CountDownLatch mStartedLatch;
+        private final CountDownLatch mBlockingLatch;
+
+        public BoundedMachine(CountDownLatch startedLatch, CountDownLatch blockingLatch) {
+            mStartedLatch = startedLatch;
+            mBlockingLatch = blockingLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Block
+        }
+
+        @States
+        public enum State {
+            Idle
+        }
+
+        @Connection(from = "Idle", to = "*", on = "Block")
+        public void onBlock() {
+            mStartedLatch.countDown();
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
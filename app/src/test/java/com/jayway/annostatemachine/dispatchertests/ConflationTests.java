@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Conflated;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.OverflowPolicy;
+import com.jayway.annostatemachine.dispatchertests.generated.DropOldestProgressMachineImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.ProgressMachineImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.SharedProgressMachineImpl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConflationTests {
+
+    @Test
+    public void testWaitingSignalGetsLatestPayload() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        ProgressMachineImpl machine = new ProgressMachineImpl(blockingLatch, doneLatch);
+        machine.init(ProgressMachine.State.Running);
+
+        machine.send(ProgressMachine.Signal.Block);
+        for (int i = 1; i <= 100; i++) {
+            machine.send(ProgressMachine.Signal.Progress, new SignalPayload().put("percent", i));
+        }
+        machine.send(ProgressMachine.Signal.Done);
+        blockingLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("progress 100", "done"), machine.handled);
+        machine.shutDown();
+    }
+
+    @Test
+    public void testSignalSentAfterDispatchStartedIsQueued() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        ProgressMachineImpl machine = new ProgressMachineImpl(blockingLatch, doneLatch);
+        machine.init(ProgressMachine.State.Running);
+
+        machine.send(ProgressMachine.Signal.Progress, new SignalPayload().put("percent", 1));
+        machine.send(ProgressMachine.Signal.Block);
+        // The first progress signal has been dispatched once the block signal is
+        assertTrue(machine.blockedLatch.await(5, TimeUnit.SECONDS));
+        machine.send(ProgressMachine.Signal.Progress, new SignalPayload().put("percent", 2));
+        machine.send(ProgressMachine.Signal.Done);
+        blockingLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("progress 1", "progress 2", "done"), machine.handled);
+        machine.shutDown();
+    }
+
+    @Test
+    public void testMachinesSharingQueueDoNotConflateEachOther() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(2);
+        SharedProgressMachineImpl machine1 = new SharedProgressMachineImpl(blockingLatch, doneLatch);
+        machine1.init(SharedProgressMachine.State.Running);
+        SharedProgressMachineImpl machine2 = new SharedProgressMachineImpl(blockingLatch, doneLatch);
+        machine2.init(SharedProgressMachine.State.Running);
+
+        // Blocks the shared queue
+        machine1.send(SharedProgressMachine.Signal.Block);
+        machine1.send(SharedProgressMachine.Signal.Progress, new SignalPayload().put("percent", 10));
+        machine2.send(SharedProgressMachine.Signal.Progress, new SignalPayload().put("percent", 20));
+        machine1.send(SharedProgressMachine.Signal.Progress, new SignalPayload().put("percent", 11));
+        machine2.send(SharedProgressMachine.Signal.Progress, new SignalPayload().put("percent", 21));
+        machine1.send(SharedProgressMachine.Signal.Done);
+        machine2.send(SharedProgressMachine.Signal.Done);
+        blockingLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("progress 11", "done"), machine1.handled);
+        assertEquals(Arrays.asList("progress 21", "done"), machine2.handled);
+        machine1.shutDown();
+        machine2.shutDown();
+    }
+
+    @Test
+    public void testSignalSentAfterWaitingSignalWasDroppedIsQueued() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        DropOldestProgressMachineImpl machine = new DropOldestProgressMachineImpl(blockingLatch, doneLatch);
+        machine.init(DropOldestProgressMachine.State.Running);
+
+        machine.send(DropOldestProgressMachine.Signal.Block);
+        assertTrue(machine.blockedLatch.await(5, TimeUnit.SECONDS));
+        machine.send(DropOldestProgressMachine.Signal.Progress, new SignalPayload().put("percent", 1));
+        // Fills the queue and drops the waiting progress signal
+        machine.send(DropOldestProgressMachine.Signal.Filler);
+        machine.send(DropOldestProgressMachine.Signal.Filler);
+        machine.send(DropOldestProgressMachine.Signal.Progress, new SignalPayload().put("percent", 2));
+        blockingLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("filler", "progress 2"), machine.handled);
+        machine.shutDown();
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class ProgressMachine {
+
+        private final CountDownLatch mBlockingLatch;
+        private final CountDownLatch mDoneLatch;
+        public final List<String> handled = new ArrayList<>();
+        public final CountDownLatch blockedLatch = new CountDownLatch(1);
+
+        public ProgressMachine(CountDownLatch blockingLatch, CountDownLatch doneLatch) {
+            mBlockingLatch = blockingLatch;
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            @Conflated Progress,
+            Block,
+            Done
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Block")
+        public void onBlock() {
+            blockedLatch.countDown();
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Progress")
+        public void onProgress(int percent) {
+            handled.add("progress " + percent);
+        }
+
+        @Connection(from = "Running", to = "*", on = "Done")
+        public void onDone() {
+            handled.add("done");
+            mDoneLatch.countDown();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE, queueCapacity = 2,
+            overflowPolicy = OverflowPolicy.DROP_OLDEST)
+    public static class DropOldestProgressMachine {
+
+        private final CountDownLatch mBlockingLatch;
+        private final CountDownLatch mDoneLatch;
+        public final List<String> handled = new ArrayList<>();
+        public final CountDownLatch blockedLatch = new CountDownLatch(1);
+
+        public DropOldestProgressMachine(CountDownLatch blockingLatch, CountDownLatch doneLatch) {
+            mBlockingLatch = blockingLatch;
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            @Conflated Progress,
+            Block,
+            Filler
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Block")
+        public void onBlock() {
+            blockedLatch.countDown();
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Filler")
+        public void onFiller() {
+            handled.add("filler");
+        }
+
+        @Connection(from = "Running", to = "*", on = "Progress")
+        public void onProgress(int percent) {
+            handled.add("progress " + percent);
+            mDoneLatch.countDown();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE, queueId = 8)
+    public static class SharedProgressMachine {
+
+        private final CountDownLatch mBlockingLatch;
+        private final CountDownLatch mDoneLatch;
+        public final List<String> handled = new ArrayList<>();
+
+        public SharedProgressMachine(CountDownLatch blockingLatch, CountDownLatch doneLatch) {
+            mBlockingLatch = blockingLatch;
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            @Conflated Progress,
+            Block,
+            Done
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Block")
+        public void onBlock() {
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Progress")
+        public void onProgress(int percent) {
+            handled.add("progress " + percent);
+        }
+
+        @Connection(from = "Running", to = "*", on = "Done")
+        public void onDone() {
+            handled.add("done");
+            mDoneLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchertests.generated.BackgroundQueueCounterImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.RingBufferCounterImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.SharedQueueCounterImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.VirtualThreadCounterImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.WorkStealingCounterImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends signals to many state machines using each of the background dispatch modes and verifies
+ * that every state machine handled all of its signals in order.
+ */
+public class DispatchModeOrderingTests {
+
+    private static final int NUM_MACHINES = 200;
+    private static final int SIGNALS_PER_MACHINE = 500;
+
+    @Test
+    public void testSignalsHandledInOrderPerDispatchMode() throws InterruptedException {
+        MachineFactory[] factories = {
+                new MachineFactory("BACKGROUND_QUEUE") {
+                    @Override
+                    CountingMachine create(CountDownLatch doneLatch) {
+                        BackgroundQueueCounterImpl machine = new BackgroundQueueCounterImpl(doneLatch);
+                        machine.init(BackgroundQueueCounter.State.Counting);
+                        return machine;
+                    }
+
+                    @Override
+                    void sendCount(CountingMachine machine, int sequence) {
+                        ((BackgroundQueueCounterImpl) machine).send(BackgroundQueueCounter.Signal.Count, new SignalPayload().put("sequence", sequence));
+                    }
+
+                    @Override
+                    void shutDown(CountingMachine machine) {
+                        ((BackgroundQueueCounterImpl) machine).shutDown();
+                    }
+                },
+                new MachineFactory("SHARED_BACKGROUND_QUEUE") {
+                    @Override
+                    CountingMachine create(CountDownLatch doneLatch) {
+                        SharedQueueCounterImpl machine = new SharedQueueCounterImpl(doneLatch);
+                        machine.init(SharedQueueCounter.State.Counting);
+                        return machine;
+                    }
+
+                    @Override
+                    void sendCount(CountingMachine machine, int sequence) {
+                        ((SharedQueueCounterImpl) machine).send(SharedQueueCounter.Signal.Count, new SignalPayload().put("sequence", sequence));
+                    }
+
+                    @Override
+                    void shutDown(CountingMachine machine) {
+                        ((SharedQueueCounterImpl) machine).shutDown();
+                    }
+                },
+                new MachineFactory("VIRTUAL_THREAD") {
+                    @Override
+                    CountingMachine create(CountDownLatch doneLatch) {
+                        VirtualThreadCounterImpl machine = new VirtualThreadCounterImpl(doneLatch);
+                        machine.init(VirtualThreadCounter.State.Counting);
+                        return machine;
+                    }
+
+                    @Override
+                    void sendCount(CountingMachine machine, int sequence) {
+                        ((VirtualThreadCounterImpl) machine).send(VirtualThreadCounter.Signal.Count, new SignalPayload().put("sequence", sequence));
+                    }
+
+                    @Override
+                    void shutDown(CountingMachine machine) {
+                        ((VirtualThreadCounterImpl) machine).shutDown();
+                    }
+                },
+                new MachineFactory("WORK_STEALING") {
+                    @Override
+                    CountingMachine create(CountDownLatch doneLatch) {
+                        WorkStealingCounterImpl machine = new WorkStealingCounterImpl(doneLatch);
+                        machine.init(WorkStealingCounter.State.Counting);
+                        return machine;
+                    }
+
+                    @Override
+                    void sendCount(CountingMachine machine, int sequence) {
+                        ((WorkStealingCounterImpl) machine).send(WorkStealingCounter.Signal.Count, new SignalPayload().put("sequence", sequence));
+                    }
+
+                    @Override
+                    void shutDown(CountingMachine machine) {
+                        ((WorkStealingCounterImpl) machine).shutDown();
+                    }
+                },
+                new MachineFactory("RING_BUFFER") {
+                    @Override
+                    CountingMachine create(CountDownLatch doneLatch) {
+                        RingBufferCounterImpl machine = new RingBufferCounterImpl(doneLatch);
+                        machine.init(RingBufferCounter.State.Counting);
+                        return machine;
+                    }
+
+                    @Override
+                    void sendCount(CountingMachine machine, int sequence) {
+                        ((RingBufferCounterImpl) machine).send(RingBufferCounter.Signal.Count, new SignalPayload().put("sequence", sequence));
+                    }
+
+                    @Override
+                    void shutDown(CountingMachine machine) {
+                        ((RingBufferCounterImpl) machine).shutDown();
+                    }
+                }
+        };
+
+        for (MachineFactory factory : factories) {
+            sendToMachines(factory);
+        }
+    }
+
+    private void sendToMachines(MachineFactory factory) throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(NUM_MACHINES * SIGNALS_PER_MACHINE);
+        CountingMachine[] machines = new CountingMachine[NUM_MACHINES];
+        for (int i = 0; i < NUM_MACHINES; i++) {
+            machines[i] = factory.create(doneLatch);
+        }
+
+        for (int sequence = 0; sequence < SIGNALS_PER_MACHINE; sequence++) {
+            for (CountingMachine machine : machines) {
+                factory.sendCount(machine, sequence);
+            }
+        }
+        assertTrue(factory.mName + " did not handle all signals", doneLatch.await(60, TimeUnit.SECONDS));
+
+        for (CountingMachine machine : machines) {
+            assertFalse(factory.mName + " handled signals out of order", machine.outOfOrder);
+            factory.shutDown(machine);
+        }
+    }
+
+    private static abstract class MachineFactory {
+        final String mName;
+
+        MachineFactory(String name) {
+            mName = name;
+        }
+
+        abstract CountingMachine create(CountDownLatch doneLatch);
+
+        abstract void sendCount(CountingMachine machine, int sequence);
+
+        abstract void shutDown(CountingMachine machine);
+    }
+
+    /**
+     * The counting logic shared by the state machines of the different dispatch modes.
+     */
+    public static class CountingMachine {
+        private final CountDownLatch mDoneLatch;
+        private int mNextSequence;
+        public volatile boolean outOfOrder;
+
+        CountingMachine(CountDownLatch doneLatch) {
+            mDoneLatch = doneLatch;
+        }
+
+        void count(int sequence) {
+            if (sequence != mNextSequence) {
+                outOfOrder = true;
+            }
+            mNextSequence = sequence + 1;
+            mDoneLatch.countDown();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class BackgroundQueueCounter extends CountingMachine {
+
+        public BackgroundQueueCounter(CountDownLatch doneLatch) {
+            super(doneLatch);
+        }
+
+        @Signals
+        public enum Signal {
+            Count
+        }
+
+        @States
+        public enum State {
+            Counting
+        }
+
+        @Connection(from = "Counting", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            count(sequence);
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE)
+    public static class SharedQueueCounter extends CountingMachine {
+
+        public SharedQueueCounter(CountDownLatch doneLatch) {
+            super(doneLatch);
+        }
+
+        @Signals
+        public enum Signal {
+            Count
+        }
+
+        @States
+        public enum State {
+            Counting
+        }
+
+        @Connection(from = "Counting", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            count(sequence);
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.VIRTUAL_THREAD)
+    public static class VirtualThreadCounter extends CountingMachine {
+
+        public VirtualThreadCounter(CountDownLatch doneLatch) {
+            super(doneLatch);
+        }
+
+        @Signals
+        public enum Signal {
+            Count
+        }
+
+        @States
+        public enum State {
+            Counting
+        }
+
+        @Connection(from = "Counting", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            count(sequence);
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.WORK_STEALING)
+    public static class WorkStealingCounter extends CountingMachine {
+
+        public WorkStealingCounter(CountDownLatch doneLatch) {
+            super(doneLatch);
+        }
+
+        @Signals
+        public enum Signal {
+            Count
+        }
+
+        @States
+        public enum State {
+            Counting
+        }
+
+        @Connection(from = "Counting", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            count(sequence);
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.RING_BUFFER, ringBufferSize = 512)
+    public static class RingBufferCounter extends CountingMachine {
+
+        public RingBufferCounter(CountDownLatch doneLatch) {
+            super(doneLatch);
+        }
+
+        @Signals
+        public enum Signal {
+            Count
+        }
+
+        @States
+        public enum State {
+            Counting
+        }
+
+        @Connection(from = "Counting", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            count(sequence);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.AnnoStateMachine;
+import com.jayway.annostatemachine.DefaultDispatcherThreadFactory;
+import com.jayway.annostatemachine.DispatcherThreadFactory;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchertests.generated.PriorityMachineImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.PriorityRingMachineImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.PrioritySharedMachineImpl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherThreadTests {
+
+    @After
+    public void tearDown() {
+        AnnoStateMachine.setDispatcherThreadFactory(new DefaultDispatcherThreadFactory());
+    }
+
+    @Test
+    public void testBackgroundQueueThreadIsNamedAfterMachineWithPriority() throws InterruptedException {
+        PriorityMachineImpl machine = new PriorityMachineImpl();
+        machine.init(PriorityMachine.State.Running);
+
+        machine.send(PriorityMachine.Signal.Ping);
+
+        assertTrue(machine.dispatchedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("PriorityMachine", machine.threadName);
+        assertEquals(Thread.MAX_PRIORITY, machine.threadPriority);
+        assertFalse(machine.threadIsDaemon);
+        machine.shutDown();
+    }
+
+    @Test
+    public void testSharedQueueThreadIsNamedAfterQueueId() throws InterruptedException {
+        PrioritySharedMachineImpl machine = new PrioritySharedMachineImpl();
+        machine.init(PrioritySharedMachine.State.Running);
+
+        machine.send(PrioritySharedMachine.Signal.Ping);
+
+        assertTrue(machine.dispatchedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("SharedBackgroundQueue-19", machine.threadName);
+        assertEquals(Thread.MIN_PRIORITY, machine.threadPriority);
+        machine.shutDown();
+    }
+
+    @Test
+    public void testThreadsAreCreatedByConfiguredFactory() throws InterruptedException {
+        final AtomicInteger createdCount = new AtomicInteger();
+        AnnoStateMachine.setDispatcherThreadFactory(new DispatcherThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable, String name, int priority) {
+                createdCount.incrementAndGet();
+                Thread thread = new Thread(runnable, "custom-" + name);
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+        PriorityRingMachineImpl machine = new PriorityRingMachineImpl();
+        machine.init(PriorityRingMachine.State.Running);
+
+        machine.send(PriorityRingMachine.Signal.Ping);
+
+        assertTrue(machine.dispatchedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, createdCount.get());
+        assertEquals("custom-PriorityRingMachine", machine.threadName);
+        assertEquals(Thread.MAX_PRIORITY, machine.threadPriority);
+        assertTrue(machine.threadIsDaemon);
+        machine.shutDown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFactoryMustNotBeNull() {
+        AnnoStateMachine.setDispatcherThreadFactory(null);
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE, threadPriority = Thread.MAX_PRIORITY)
+    public static class PriorityMachine {
+
+        public final CountDownLatch dispatchedLatch = new CountDownLatch(1);
+        public volatile String threadName;
+        public volatile int threadPriority;
+        public volatile boolean threadIsDaemon;
+
+        @Signals
+        public enum Signal {
+            Ping
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Ping")
+        public void onPing() {
+            Thread thread = Thread.currentThread();
+            threadName = thread.getName();
+            threadPriority = thread.getPriority();
+            threadIsDaemon = thread.isDaemon();
+            dispatchedLatch.countDown();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE, queueId = 19,
+            threadPriority = Thread.MIN_PRIORITY)
+    public static class PrioritySharedMachine {
+
+        public final CountDownLatch dispatchedLatch = new CountDownLatch(1);
+        public volatile String threadName;
+        public volatile int threadPriority;
+
+        @Signals
+        public enum Signal {
+            Ping
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Ping")
+        public void onPing() {
+            threadName = Thread.currentThread().getName();
+            threadPriority = Thread.currentThread().getPriority();
+            dispatchedLatch.countDown();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.RING_BUFFER, threadPriority = Thread.MAX_PRIORITY)
+    public static class PriorityRingMachine {
+
+        public final CountDownLatch dispatchedLatch = new CountDownLatch(1);
+        public volatile String threadName;
+        public volatile int threadPriority;
+        public volatile boolean threadIsDaemon;
+
+        @Signals
+        public enum Signal {
+            Ping
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Ping")
+        public void onPing() {
+            Thread thread = Thread.currentThread();
+            threadName = thread.getName();
+            threadPriority = thread.getPriority();
+            threadIsDaemon = thread.isDaemon();
+            dispatchedLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchertests.generated.DrainingMachineImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.RingDrainingMachineImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class GracefulShutdownTests {
+
+    private static final int SIGNAL_COUNT = 100;
+
+    @Test
+    public void testQueuedSignalsAreDispatchedBeforeShutDown() throws InterruptedException {
+        DrainingMachineImpl machine = new DrainingMachineImpl(new CountDownLatch(0));
+        machine.init(DrainingMachine.State.Running);
+        for (int i = 0; i < SIGNAL_COUNT; i++) {
+            machine.send(DrainingMachine.Signal.Work);
+        }
+
+        assertEquals(0, machine.shutDownGracefully(5, TimeUnit.SECONDS));
+        assertEquals(SIGNAL_COUNT, machine.workCount.get());
+        assertFalse(machine.trySend(DrainingMachine.Signal.Work, new SignalPayload()));
+    }
+
+    @Test
+    public void testSignalsLeftWhenTimeRunsOutAreDiscarded() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        DrainingMachineImpl machine = new DrainingMachineImpl(blockingLatch);
+        machine.init(DrainingMachine.State.Running);
+        machine.send(DrainingMachine.Signal.Block);
+        for (int i = 0; i < 5; i++) {
+            machine.send(DrainingMachine.Signal.Work);
+        }
+
+        assertEquals(5, machine.shutDownGracefully(50, TimeUnit.MILLISECONDS));
+        blockingLatch.countDown();
+        Thread.sleep(50);
+        assertEquals(0, machine.workCount.get());
+    }
+
+    @Test
+    public void testRingBufferDispatchesPublishedSignalsBeforeShutDown() throws InterruptedException {
+        RingDrainingMachineImpl machine = new RingDrainingMachineImpl();
+        machine.init(RingDrainingMachine.State.Running);
+        for (int i = 0; i < SIGNAL_COUNT; i++) {
+            machine.send(RingDrainingMachine.Signal.Work);
+        }
+
+        assertEquals(0, machine.shutDownGracefully(5, TimeUnit.SECONDS));
+        assertEquals(SIGNAL_COUNT, machine.workCount.get());
+        assertFalse(machine.trySend(RingDrainingMachine.Signal.Work, new SignalPayload()));
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class DrainingMachine {
+
+        private final CountDownLatch mBlockingLatch;
+        public final AtomicInteger workCount = new AtomicInteger();
+
+        public DrainingMachine(CountDownLatch blockingLatch) {
+            mBlockingLatch = blockingLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Work, Block
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Block")
+        public void onBlock() {
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Work")
+        public void onWork() {
+            workCount.incrementAndGet();
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.RING_BUFFER, ringBufferSize = 256)
+    public static class RingDrainingMachine {
+
+        public final AtomicInteger workCount = new AtomicInteger();
+
+        @Signals
+        public enum Signal {
+            Work
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Work")
+        public void onWork() {
+            workCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalDispatcherFactory;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchertests.generated.InjectableMachineImpl;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InjectedDispatcherTests {
+
+    @Test
+    public void testAnnotatedDispatcherUsedByDefault() {
+        InjectableMachineImpl machine = new InjectableMachineImpl(new CountDownLatch(1));
+        machine.init(InjectableMachine.State.Running);
+
+        machine.send(InjectableMachine.Signal.Ping);
+
+        assertSame(Thread.currentThread(), machine.dispatchThread);
+    }
+
+    @Test
+    public void testInjectedDispatcherIsUsed() throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        InjectableMachineImpl machine = new InjectableMachineImpl(doneLatch);
+        machine.init(InjectableMachine.State.Running, new BackgroundQueueDispatcher());
+
+        machine.send(InjectableMachine.Signal.Ping);
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), machine.dispatchThread);
+        machine.shutDown();
+    }
+
+    @Test
+    public void testDispatcherFromFactoryIsUsed() throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(3);
+        final CountingDispatcher dispatcher = new CountingDispatcher();
+        InjectableMachineImpl machine = new InjectableMachineImpl(doneLatch);
+        machine.init(InjectableMachine.State.Running, null, null, new SignalDispatcherFactory() {
+            @Override
+            public SignalDispatcher create() {
+                return dispatcher;
+            }
+        });
+
+        for (int i = 0; i < 3; i++) {
+            machine.send(InjectableMachine.Signal.Ping);
+        }
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.mDispatchCount.get());
+        machine.shutDown();
+    }
+
+    /**
+     * An instrumented dispatcher that counts the signals it dispatches.
+     */
+    private static class CountingDispatcher extends SignalDispatcher {
+        private final BackgroundQueueDispatcher mDispatcher = new BackgroundQueueDispatcher();
+        final AtomicInteger mDispatchCount = new AtomicInteger();
+
+        @Override
+        public void dispatch(Enum signal, SignalPayload payload, DispatchCallback callback, StateMachineLogger logger) {
+            mDispatchCount.incrementAndGet();
+            mDispatcher.dispatch(signal, payload, callback, logger);
+        }
+
+        @Override
+        public void runOnDispatchThread(Runnable runnable, StateMachineLogger logger) {
+            mDispatcher.runOnDispatchThread(runnable, logger);
+        }
+
+        @Override
+        public void shutDown() {
+            mDispatcher.shutDown();
+        }
+    }
+
+    @StateMachine
+    public static class InjectableMachine {
+
+        private final CountDownLatch mDoneLatch;
+        public volatile Thread dispatchThread;
+
+        public InjectableMachine(CountDownLatch doneLatch) {
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Ping
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Ping")
+        public void onPing() {
+            dispatchThread = Thread.currentThread();
+            mDoneLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.DispatchCallback;
+import com.jayway.annostatemachine.SignalDispatcher;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.dispatchers.BackgroundQueueDispatcher;
+import com.jayway.annostatemachine.dispatchers.RingBufferDispatcher;
+import com.jayway.annostatemachine.utils.StateMachineLogger;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the bytes allocated by the sending thread per dispatched signal, after a warm-up.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SendAllocationTests {
+
+    private static final int NUM_SIGNALS = 100000;
+    private static final int NUM_WARM_UP_ROUNDS = 3;
+
+    // The dispatch task and the mailbox queue node, with compressed references
+    private static final double BACKGROUND_QUEUE_BYTES_PER_SEND = 72;
+
+    enum Signal {
+        Count
+    }
+
+    @Mock
+    StateMachineLogger mMockLogger;
+
+    private ThreadMXBean mThreadBean;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof ThreadMXBean);
+        mThreadBean = (ThreadMXBean) threadBean;
+        assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testRingBufferSendDoesNotAllocate() {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher();
+        try {
+            double bytesPerSend = measureBytesPerSend(dispatcher);
+            assertTrue("Allocated " + bytesPerSend + " bytes per send", bytesPerSend < 1);
+        } finally {
+            dispatcher.shutDown();
+        }
+    }
+
+    @Test
+    public void testBackgroundQueueSendOnlyAllocatesTaskAndQueueNode() {
+        HotSpotDiagnosticMXBean diagnosticBean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        assumeTrue(diagnosticBean != null
+                && "true".equals(diagnosticBean.getVMOption("UseCompressedOops").getValue()));
+        BackgroundQueueDispatcher dispatcher = new BackgroundQueueDispatcher();
+        try {
+            double bytesPerSend = measureBytesPerSend(dispatcher);
+            assertTrue("Allocated " + bytesPerSend + " bytes per send",
+                    bytesPerSend <= BACKGROUND_QUEUE_BYTES_PER_SEND + 1);
+        } finally {
+            dispatcher.shutDown();
+        }
+    }
+
+    private double measureBytesPerSend(SignalDispatcher dispatcher) {
+        DispatchCallback callback = new DispatchCallback() {
+            @Override
+            public void dispatchBlocking(Enum signal, SignalPayload payload) {
+            }
+        };
+        SignalPayload payload = new SignalPayload();
+        for (int round = 0; round < NUM_WARM_UP_ROUNDS; round++) {
+            send(dispatcher, callback, payload);
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = mThreadBean.getThreadAllocatedBytes(threadId);
+        send(dispatcher, callback, payload);
+        long allocated = mThreadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return (double) allocated / NUM_SIGNALS;
+    }
+
+    private void send(SignalDispatcher dispatcher, DispatchCallback callback, SignalPayload payload) {
+        for (int i = 0; i < NUM_SIGNALS; i++) {
+            assertTrue(dispatcher.tryDispatch(Signal.Count, payload, callback, mMockLogger));
+        }
+    }
+}
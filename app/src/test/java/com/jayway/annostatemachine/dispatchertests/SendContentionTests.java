@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchertests.generated.CountingMachineImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends signals to one background queue machine from many threads at once. Verifies that all
+ * signals arrive in the order each thread sent them and that sending does not wait for the
+ * monitor of the machine, which the generated send method used to hold.
+ */
+public class SendContentionTests {
+
+    private static final int SIGNALS_PER_PRODUCER = 5000;
+    private static final int[] PRODUCER_COUNTS = {8, 16, 32, 64};
+
+    @Test
+    public void testManyProducersKeepTheirOrder() throws InterruptedException {
+        for (int producerCount : PRODUCER_COUNTS) {
+            sendFromProducers(producerCount);
+        }
+    }
+
+    @Test
+    public void testSendDoesNotWaitForMachineMonitor() throws InterruptedException {
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        final CountingMachineImpl machine = new CountingMachineImpl(1, doneLatch);
+        machine.init(CountingMachine.State.Counting);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                machine.send(CountingMachine.Signal.Count, new SignalPayload()
+                        .put("producer", 0)
+                        .put("sequence", 0));
+            }
+        });
+
+        synchronized (machine) {
+            producer.start();
+            producer.join(5000);
+            assertFalse("Send waited for the monitor of the machine", producer.isAlive());
+        }
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        machine.shutDown();
+    }
+
+    private void sendFromProducers(int producerCount) throws InterruptedException {
+        final CountDownLatch doneLatch = new CountDownLatch(producerCount * SIGNALS_PER_PRODUCER);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountingMachineImpl machine = new CountingMachineImpl(producerCount, doneLatch);
+        machine.init(CountingMachine.State.Counting);
+
+        Thread[] producers = new Thread[producerCount];
+        for (int i = 0; i < producerCount; i++) {
+            final int producer = i;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int sequence = 0; sequence < SIGNALS_PER_PRODUCER; sequence++) {
+                        SignalPayload payload = new SignalPayload()
+                                .put("producer", producer)
+                                .put("sequence", sequence);
+                        machine.send(CountingMachine.Signal.Count, payload);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        startLatch.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(doneLatch.await(30, TimeUnit.SECONDS));
+        machine.shutDown();
+
+        assertFalse("Signals from one producer were handled out of order", machine.outOfOrder);
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class CountingMachine {
+
+        private final int[] mNextSequence;
+        private final CountDownLatch mDoneLatch;
+        public volatile boolean outOfOrder;
+
+        public CountingMachine(int producerCount, CountDownLatch doneLatch) {
+            mNextSequence = new int[producerCount];
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Count
+        }
+
+        @States
+        public enum State {
+            Counting
+        }
+
+        @Connection(from = "Counting", to = "*", on = "Count")
+        public void onCount(int producer, int sequence) {
+            if (mNextSequence[producer] != sequence) {
+                outOfOrder = true;
+            }
+            mNextSequence[producer] = sequence + 1;
+            mDoneLatch.countDown();
+        }
+    }
+}
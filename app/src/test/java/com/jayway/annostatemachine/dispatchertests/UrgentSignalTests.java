@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.annotations.Urgent;
+import com.jayway.annostatemachine.dispatchertests.generated.SharedUrgentMachineImpl;
+import com.jayway.annostatemachine.dispatchertests.generated.UrgentMachineImpl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UrgentSignalTests {
+
+    @Test
+    public void testUrgentSignalOvertakesBacklog() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        UrgentMachineImpl machine = new UrgentMachineImpl(blockingLatch, doneLatch);
+        machine.init(UrgentMachine.State.Running);
+
+        machine.send(UrgentMachine.Signal.Block);
+        for (int i = 1; i <= 1000; i++) {
+            machine.send(UrgentMachine.Signal.Progress, new SignalPayload().put("percent", i));
+        }
+        machine.send(UrgentMachine.Signal.Cancel, new SignalPayload().put("reason", 1));
+        machine.send(UrgentMachine.Signal.Cancel, new SignalPayload().put("reason", 2));
+        blockingLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("cancel 1", "cancel 2", "progress 1"), machine.handled.subList(0, 3));
+        assertEquals(1002, machine.handled.size());
+        machine.shutDown();
+    }
+
+    @Test
+    public void testUrgentSignalOvertakesOtherMachinesOnSharedQueue() throws InterruptedException {
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        List<String> handled = new ArrayList<>();
+        SharedUrgentMachineImpl busyMachine = new SharedUrgentMachineImpl(blockingLatch, doneLatch, handled, "busy");
+        busyMachine.init(SharedUrgentMachine.State.Running);
+        SharedUrgentMachineImpl cancelledMachine = new SharedUrgentMachineImpl(blockingLatch, doneLatch, handled, "cancelled");
+        cancelledMachine.init(SharedUrgentMachine.State.Running);
+
+        busyMachine.send(SharedUrgentMachine.Signal.Block);
+        for (int i = 0; i < 100; i++) {
+            busyMachine.send(SharedUrgentMachine.Signal.Progress);
+        }
+        cancelledMachine.send(SharedUrgentMachine.Signal.Cancel);
+        blockingLatch.countDown();
+
+        assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("cancelled cancel", handled.get(0));
+        busyMachine.shutDown();
+        cancelledMachine.shutDown();
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.BACKGROUND_QUEUE)
+    public static class UrgentMachine {
+
+        private final CountDownLatch mBlockingLatch;
+        private final CountDownLatch mDoneLatch;
+        public final List<String> handled = new ArrayList<>();
+
+        public UrgentMachine(CountDownLatch blockingLatch, CountDownLatch doneLatch) {
+            mBlockingLatch = blockingLatch;
+            mDoneLatch = doneLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Progress,
+            Block,
+            @Urgent Cancel
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Block")
+        public void onBlock() {
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Progress")
+        public void onProgress(int percent) {
+            handled.add("progress " + percent);
+            if (percent == 1000) {
+                mDoneLatch.countDown();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Cancel")
+        public void onCancel(int reason) {
+            handled.add("cancel " + reason);
+        }
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE, queueId = 9)
+    public static class SharedUrgentMachine {
+
+        private final CountDownLatch mBlockingLatch;
+        private final CountDownLatch mDoneLatch;
+        private final List<String> mHandled;
+        private final String mName;
+
+        public SharedUrgentMachine(CountDownLatch blockingLatch, CountDownLatch doneLatch,
+                                   List<String> handled, String name) {
+            mBlockingLatch = blockingLatch;
+            mDoneLatch = doneLatch;
+            mHandled = handled;
+            mName = name;
+        }
+
+        @Signals
+        public enum Signal {
+            Progress,
+            Block,
+            @Urgent Cancel
+        }
+
+        @States
+        public enum State {
+            Running
+        }
+
+        @Connection(from = "Running", to = "*", on = "Block")
+        public void onBlock() {
+            try {
+                mBlockingLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Connection(from = "Running", to = "*", on = "Progress")
+        public void onProgress() {
+            mHandled.add(mName + " progress");
+        }
+
+        @Connection(from = "Running", to = "*", on = "Cancel")
+        public void onCancel() {
+            mHandled.add(mName + " cancel");
+            mDoneLatch.countDown();
+        }
+    }
+}
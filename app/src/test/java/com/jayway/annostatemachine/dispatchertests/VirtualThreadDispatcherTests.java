@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.dispatchertests;
+
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.dispatchertests.generated.SessionMachineImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadDispatcherTests {
+
+    private static final int NUM_MACHINES = 2000;
+    private static final int SIGNALS_PER_MACHINE = 20;
+
+    @Test
+    public void testSignalsDispatchedInOrderForManyMachines() throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(NUM_MACHINES * SIGNALS_PER_MACHINE);
+        SessionMachineImpl[] machines = new SessionMachineImpl[NUM_MACHINES];
+        for (int i = 0; i < NUM_MACHINES; i++) {
+            machines[i] = new SessionMachineImpl(doneLatch, null);
+            machines[i].init(SessionMachine.State.Active);
+        }
+
+        for (int sequence = 0; sequence < SIGNALS_PER_MACHINE; sequence++) {
+            for (SessionMachineImpl machine : machines) {
+                machine.send(SessionMachine.Signal.Count, new SignalPayload().put("sequence", sequence));
+            }
+        }
+
+        assertTrue(doneLatch.await(30, TimeUnit.SECONDS));
+        for (SessionMachineImpl machine : machines) {
+            assertFalse(machine.outOfOrder);
+            machine.shutDown();
+        }
+    }
+
+    @Test
+    public void testBlockingConnectionDoesNotStallOtherMachines() throws InterruptedException {
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        CountDownLatch blockedMachineDoneLatch = new CountDownLatch(1);
+        SessionMachineImpl blockedMachine = new SessionMachineImpl(blockedMachineDoneLatch, releaseLatch);
+        blockedMachine.init(SessionMachine.State.Active);
+        CountDownLatch otherMachineDoneLatch = new CountDownLatch(1);
+        SessionMachineImpl otherMachine = new SessionMachineImpl(otherMachineDoneLatch, null);
+        otherMachine.init(SessionMachine.State.Active);
+
+        // Blocks until released
+        blockedMachine.send(SessionMachine.Signal.Block);
+        blockedMachine.send(SessionMachine.Signal.Count, new SignalPayload().put("sequence", 0));
+        otherMachine.send(SessionMachine.Signal.Count, new SignalPayload().put("sequence", 0));
+
+        assertTrue(otherMachineDoneLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, blockedMachineDoneLatch.getCount());
+
+        releaseLatch.countDown();
+        assertTrue(blockedMachineDoneLatch.await(5, TimeUnit.SECONDS));
+        blockedMachine.shutDown();
+        otherMachine.shutDown();
+    }
+
+    @Test
+    public void testNoDispatchAfterShutDown() throws InterruptedException {
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        SessionMachineImpl machine = new SessionMachineImpl(doneLatch, releaseLatch);
+        machine.init(SessionMachine.State.Active);
+
+        machine.send(SessionMachine.Signal.Block);
+        machine.send(SessionMachine.Signal.Count, new SignalPayload().put("sequence", 0));
+        machine.shutDown();
+        releaseLatch.countDown();
+
+        assertFalse(doneLatch.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.VIRTUAL_THREAD)
+    public static class SessionMachine {
+
+        private final CountDownLatch mDoneLatch;
+        private final CountDownLatch mReleaseLatch;
+        private int mNextSequence;
+        public volatile boolean outOfOrder;
+
+        public SessionMachine(CountDownLatch doneLatch, CountDownLatch releaseLatch) {
+            mDoneLatch = doneLatch;
+            mReleaseLatch = releaseLatch;
+        }
+
+        @Signals
+        public enum Signal {
+            Count, Block
+        }
+
+        @States
+        public enum State {
+            Active
+        }
+
+        @Connection(from = "Active", to = "*", on = "Count")
+        public void onCount(int sequence) {
+            if (sequence != mNextSequence) {
+                outOfOrder = true;
+            }
+            mNextSequence = sequence + 1;
+            mDoneLatch.countDown();
+        }
+
+        @Connection(from = "Active", to = "*", on = "Block")
+        public void onBlock() {
+            try {
+                mReleaseLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
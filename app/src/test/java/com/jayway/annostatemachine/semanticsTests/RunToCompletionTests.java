@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.semanticsTests;
+
+import com.jayway.annostatemachine.StateMachineFront;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.OnEnter;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.semanticsTests.generated.ReentrantMachineImpl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class RunToCompletionTests {
+
+    @Test
+    public void testSignalSentFromConnectionIsDispatchedAfterTransition() {
+        ReentrantMachineImpl machine = new ReentrantMachineImpl();
+        machine.front = machine;
+        machine.init(ReentrantMachine.State.Idle);
+
+        machine.send(ReentrantMachine.Signal.Start);
+
+        assertEquals(Arrays.asList("start begin", "start end", "enter Started", "next", "enter Done"), machine.events);
+    }
+
+    @Test
+    public void testLongChainOfSignalsDoesNotGrowStack() {
+        ReentrantMachineImpl machine = new ReentrantMachineImpl();
+        machine.front = machine;
+        machine.init(ReentrantMachine.State.Idle);
+
+        machine.send(ReentrantMachine.Signal.Count);
+
+        assertEquals(ReentrantMachine.CHAIN_LENGTH, machine.count);
+        assertEquals(1, machine.maxDepth);
+    }
+
+    @StateMachine
+    public static class ReentrantMachine {
+
+        static final int CHAIN_LENGTH = 100000;
+
+        public StateMachineFront<Signal> front;
+        public final ArrayList<String> events = new ArrayList<>();
+        public int count;
+        public int maxDepth;
+        private int mDepth;
+
+        @Signals
+        public enum Signal {
+            Start, Next, Count
+        }
+
+        @States
+        public enum State {
+            Idle, Started, Done
+        }
+
+        @Connection(from = "Idle", to = "Started", on = "Start")
+        public void onStart() {
+            events.add("start begin");
+            front.send(Signal.Next);
+            events.add("start end");
+        }
+
+        @OnEnter("Started")
+        public void onEnterStarted() {
+            events.add("enter Started");
+        }
+
+        @Connection(from = "Started", to = "Done", on = "Next")
+        public void onNext() {
+            events.add("next");
+        }
+
+        @OnEnter("Done")
+        public void onEnterDone() {
+            events.add("enter Done");
+        }
+
+        @Connection(from = "Idle", to = "*", on = "Count")
+        public void onCount() {
+            mDepth++;
+            maxDepth = Math.max(maxDepth, mDepth);
+            count++;
+            if (count < CHAIN_LENGTH) {
+                front.send(Signal.Count);
+            }
+            mDepth--;
+        }
+    }
+}
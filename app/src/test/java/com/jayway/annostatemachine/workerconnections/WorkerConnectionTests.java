@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Jayway (http://www.jayway.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jayway.annostatemachine.workerconnections;
+
+import com.jayway.annostatemachine.AnnoStateMachine;
+import com.jayway.annostatemachine.SignalPayload;
+import com.jayway.annostatemachine.StateMachineEventListener;
+import com.jayway.annostatemachine.annotations.Connection;
+import com.jayway.annostatemachine.annotations.Signals;
+import com.jayway.annostatemachine.annotations.StateMachine;
+import com.jayway.annostatemachine.annotations.States;
+import com.jayway.annostatemachine.workerconnections.generated.TransformMachineImpl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class WorkerConnectionTests {
+
+    private static final int QUEUE_ID = 21;
+
+    private final List<TransformMachineImpl> mMachines = new ArrayList<>();
+    private final Executor mConnectionExecutor = AnnoStateMachine.getConnectionExecutor();
+
+    @After
+    public void tearDown() {
+        AnnoStateMachine.setConnectionExecutor(mConnectionExecutor);
+        for (TransformMachineImpl machine : mMachines) {
+            machine.release.countDown();
+            machine.shutDown();
+        }
+    }
+
+    @Test
+    public void testConnectionRunsOnWorkerWithoutHoldingBackSharedQueue() throws InterruptedException {
+        TransformMachineImpl busy = newMachine(null);
+        TransformMachineImpl other = newMachine(null);
+        busy.latch = new CountDownLatch(1);
+        other.latch = new CountDownLatch(1);
+
+        busy.send(TransformMachine.Signal.Transform, new SignalPayload().put("size", 10));
+        busy.send(TransformMachine.Signal.Ping);
+        assertTrue(busy.started.await(5, TimeUnit.SECONDS));
+        other.send(TransformMachine.Signal.Ping);
+
+        assertTrue(other.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("idle ping"), other.events);
+        assertEquals(Collections.singletonList("transform 10"), busy.events);
+
+        busy.release.countDown();
+
+        assertTrue(busy.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("transform 10", "done ping"), busy.events);
+        assertTrue(busy.transformThread.getName().startsWith("ConnectionWorker-"));
+    }
+
+    @Test
+    public void testNoTransitionWhenWorkerConnectionReturnsFalse() throws InterruptedException {
+        TransformMachineImpl machine = newMachine(null);
+        machine.latch = new CountDownLatch(1);
+        machine.release.countDown();
+
+        machine.send(TransformMachine.Signal.Transform, new SignalPayload().put("size", 0));
+        machine.send(TransformMachine.Signal.Ping);
+
+        assertTrue(machine.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("transform 0", "idle ping"), machine.events);
+    }
+
+    @Test
+    public void testExceptionInWorkerConnectionIsReported() throws InterruptedException {
+        StateMachineEventListener eventListener = mock(StateMachineEventListener.class);
+        TransformMachineImpl machine = newMachine(eventListener);
+        machine.latch = new CountDownLatch(1);
+        machine.release.countDown();
+
+        machine.send(TransformMachine.Signal.Transform, new SignalPayload().put("size", -1));
+        machine.send(TransformMachine.Signal.Ping);
+
+        assertTrue(machine.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("transform -1", "idle ping"), machine.events);
+        verify(eventListener, timeout(1000)).onThrowable(any(Throwable.class));
+    }
+
+    @Test
+    public void testConfiguredExecutorIsUsed() throws InterruptedException {
+        final AtomicInteger executeCount = new AtomicInteger();
+        AnnoStateMachine.setConnectionExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executeCount.incrementAndGet();
+                mConnectionExecutor.execute(command);
+            }
+        });
+        TransformMachineImpl machine = newMachine(null);
+        machine.latch = new CountDownLatch(1);
+        machine.release.countDown();
+
+        machine.send(TransformMachine.Signal.Transform, new SignalPayload().put("size", 1));
+        machine.send(TransformMachine.Signal.Ping);
+
+        assertTrue(machine.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executeCount.get());
+    }
+
+    private TransformMachineImpl newMachine(StateMachineEventListener eventListener) {
+        TransformMachineImpl machine = new TransformMachineImpl();
+        machine.init(TransformMachine.State.Idle, eventListener);
+        mMachines.add(machine);
+        return machine;
+    }
+
+    @StateMachine(dispatchMode = StateMachine.DispatchMode.SHARED_BACKGROUND_QUEUE, queueId = QUEUE_ID)
+    public static class TransformMachine {
+
+        public final CountDownLatch started = new CountDownLatch(1);
+        public final CountDownLatch release = new CountDownLatch(1);
+        public final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        public volatile CountDownLatch latch;
+        public volatile Thread transformThread;
+
+        @Signals
+        public enum Signal {
+            Transform, Ping
+        }
+
+        @States
+        public enum State {
+            Idle, Done
+        }
+
+        @Connection(from = "Idle", to = "Done", on = "Transform", runOn = Connection.RunOn.WORKER)
+        public boolean onTransform(int size) throws InterruptedException {
+            transformThread = Thread.currentThread();
+            events.add("transform " + size);
+            started.countDown();
+            release.await();
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative size");
+            }
+            return size > 0;
+        }
+
+        @Connection(from = "Idle", to = "*", on = "Ping")
+        public void onPingWhenIdle() {
+            events.add("idle ping");
+            latch.countDown();
+        }
+
+        @Connection(from = "Done", to = "*", on = "Ping")
+        public void onPingWhenDone() {
+            events.add("done ping");
+            latch.countDown();
+        }
+    }
+}